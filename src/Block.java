@@ -1,8 +1,10 @@
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.function.Consumer;
 
 public class Block {
 
@@ -12,12 +14,41 @@ public class Block {
     private byte[] prevBlockHash;
     private Transaction coinbase;
     private ArrayList<Transaction> txs;
+    /** the tree over the coinbase and the transactions, or null if the block hashes them all */
+    private MerkleTree merkleTree;
 
     /** {@code address} is the address to which the coinbase transaction would go */
     public Block(byte[] prevHash, PublicKey address) {
+        this(prevHash, address, false);
+    }
+
+    /**
+     * {@code address} is the address to which the coinbase transaction would go. If
+     * {@code useMerkleRoot} is true, the hash of the block covers the previous block hash, the
+     * number of transactions and the Merkle root of the coinbase and the transactions, instead of
+     * all of the raw transactions.
+     */
+    public Block(byte[] prevHash, PublicKey address, boolean useMerkleRoot) {
         prevBlockHash = prevHash;
         coinbase = new Transaction(COINBASE, address);
         txs = new ArrayList<Transaction>();
+        if (useMerkleRoot) {
+            merkleTree = new MerkleTree();
+            merkleTree.add(coinbase);
+        }
+    }
+
+    // Creates a finalized block from its decoded parts. In Merkle mode, the tree over the
+    // transactions is only built once it is needed.
+    Block(byte[] hash, byte[] prevHash, Transaction coinbase, ArrayList<Transaction> txs, boolean useMerkleRoot) {
+        this.hash = hash;
+        this.prevBlockHash = prevHash;
+        this.coinbase = coinbase;
+        this.txs = txs;
+        if (useMerkleRoot) {
+            merkleTree = new MerkleTree();
+            merkleTree.add(coinbase);
+        }
     }
 
     public Transaction getCoinbase() {
@@ -42,37 +73,101 @@ public class Block {
 
     public void addTransaction(Transaction tx) {
         txs.add(tx);
+        if (merkleTree != null && merkleTree.size() == txs.size())
+            merkleTree.add(tx);
+    }
+
+    public boolean usesMerkleRoot() {
+        return merkleTree != null;
+    }
+
+    /** @return the Merkle root of the coinbase and the transactions, or null if not in this mode */
+    public byte[] getMerkleRoot() {
+        if (merkleTree == null)
+            return null;
+        updateMerkleTree();
+        return merkleTree.getRoot();
+    }
+
+    /**
+     * @return the proof that {@code getTransaction(txIndex)} is in this block, to be checked with
+     *         {@link #verifyMerkleProof}, or null if the block does not use a Merkle root
+     */
+    public byte[][] getMerkleProof(int txIndex) {
+        if (merkleTree == null || txIndex < 0 || txIndex >= txs.size())
+            return null;
+        updateMerkleTree();
+        return merkleTree.getProof(txIndex + 1);
+    }
+
+    /**
+     * @return true if {@code proof} shows that {@code tx} is the transaction at {@code txIndex} of
+     *         the block of {@code numTxs} transactions, besides its coinbase, whose Merkle root is
+     *         {@code merkleRoot}
+     */
+    public static boolean verifyMerkleProof(Transaction tx, int txIndex, int numTxs, byte[][] proof, byte[] merkleRoot) {
+        return txIndex >= 0 && txIndex < numTxs
+                && MerkleTree.verifyProof(tx, txIndex + 1, numTxs + 1, proof, merkleRoot);
     }
 
     public byte[] getRawBlock() {
-        ArrayList<Byte> rawBlock = new ArrayList<Byte>();
-        if (prevBlockHash != null)
-            for (int i = 0; i < prevBlockHash.length; i++)
-                rawBlock.add(prevBlockHash[i]);
-			
-		byte[] rawCoinbase = coinbase.getRawTx();
-	    for (int j = 0; j < rawCoinbase.length; j++) {
-			rawBlock.add(rawCoinbase[j]);
-		}
-        for (int i = 0; i < txs.size(); i++) {
-            byte[] rawTx = txs.get(i).getRawTx();
-            for (int j = 0; j < rawTx.length; j++) {
-                rawBlock.add(rawTx[j]);
-            }
-        }
-        byte[] raw = new byte[rawBlock.size()];
-        for (int i = 0; i < raw.length; i++)
-            raw[i] = rawBlock.get(i);
-        return raw;
+        int size = prevBlockHash == null ? 0 : prevBlockHash.length;
+        size += coinbase.getRawTxSize();
+        for (int i = 0; i < txs.size(); i++)
+            size += txs.get(i).getRawTxSize();
+        ByteBuffer rawBlock = ByteBuffer.allocate(size);
+        writeRawBlock(rawBlock::put);
+        return rawBlock.array();
     }
 
     public void finalize() {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawBlock());
+            if (merkleTree == null) {
+                writeRawBlock(md::update);
+            } else {
+                if (prevBlockHash != null)
+                    md.update(prevBlockHash);
+                // The root alone doesn't tell [a, b, c] from [a, b, c, c], the number of leaves does
+                md.update(ByteBuffer.allocate(Integer.BYTES).putInt(txs.size() + 1).array());
+                md.update(getMerkleRoot());
+            }
             hash = md.digest();
         } catch (NoSuchAlgorithmException x) {
             x.printStackTrace(System.err);
         }
     }
+
+    // Rebuilds the tree if transactions were added through getTransactions()
+    private void updateMerkleTree() {
+        if (merkleTree.size() == txs.size() + 1)
+            return;
+        merkleTree = new MerkleTree();
+        merkleTree.add(coinbase);
+        for (int i = 0; i < txs.size(); i++)
+            merkleTree.add(txs.get(i));
+    }
+
+    /**
+     * Passes the raw block to {@code sink} one part at a time: the previous block hash, then the
+     * raw coinbase and each raw transaction, all written into the same reused buffer
+     */
+    private void writeRawBlock(Consumer<ByteBuffer> sink) {
+        if (prevBlockHash != null)
+            sink.accept(ByteBuffer.wrap(prevBlockHash));
+        ByteBuffer buffer = writeRawTx(coinbase, ByteBuffer.allocate(coinbase.getRawTxSize()), sink);
+        for (int i = 0; i < txs.size(); i++)
+            buffer = writeRawTx(txs.get(i), buffer, sink);
+    }
+
+    private static ByteBuffer writeRawTx(Transaction tx, ByteBuffer buffer, Consumer<ByteBuffer> sink) {
+        int size = tx.getRawTxSize();
+        if (buffer.capacity() < size)
+            buffer = ByteBuffer.allocate(Math.max(size, 2 * buffer.capacity()));
+        buffer.clear();
+        tx.writeRawTx(buffer);
+        buffer.flip();
+        sink.accept(buffer);
+        return buffer;
+    }
 }
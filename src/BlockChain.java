@@ -21,13 +21,48 @@
 // You should not have all the blocks added to the block chain in memory 
 // as it would cause a memory overflow.
 
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
+// A BlockChain is thread-safe. Blocks and transactions are added one at a time, under the lock of
+// the blockchain, while the max height block and its UTXO pool are published together in an
+// immutable Tip that readers get without locking.
 public class BlockChain {
     public static final int CUT_OFF_AGE = 10;
+    // Inputs of imported blocks whose signatures are verified together, well within the capacity of
+    // the signature cache
+    private static final int MAX_IMPORT_SIGNATURES = SignatureCache.DEFAULT_CAPACITY / 4;
     private TransactionPool transactionPool;
+    private OrphanTransactionPool orphanTransactionPool;
+    // The blocks that arrived before their parent, added as soon as it is
+    private OrphanBlockPool orphanBlockPool;
+    // Told what becomes of each block that waited in orphanBlockPool
+    private ArrayList<OrphanListener> orphanListeners;
     private ArrayList<BlockWrapper> blockChainHead;
     private BlockWrapper maxHeightBlockWrapper;
+    // The only UTXO pool kept up to date as blocks are added; the one of any other block is derived
+    // from it with the undo data of the blocks in between
+    private UTXOPool maxHeightUtxoPool;
+    // maxHeightBlockWrapper and maxHeightUtxoPool as last published for readers
+    private final AtomicReference<Tip> tip = new AtomicReference<>();
+    // Numbers the keys of the outputs of the packed UTXO pools and the snapshots of this blockchain
+    private final KeyRegistry keyRegistry = new KeyRegistry();
+    // Index from block hash to its node, holding exactly the blocks reachable from blockChainHead
+    private ConcurrentHashMap<HashWrapper, BlockWrapper> blockIndex;
+    // Where every added block is written, or null to keep the blocks in memory only
+    private BlockStore blockStore;
+    // Where a snapshot is written every snapshotInterval added blocks, or null for no snapshots
+    private Path snapshotFile;
+    private int snapshotInterval;
+    private int blocksSinceSnapshot;
+    // Told when a snapshot written every snapshotInterval added blocks fails
+    private SnapshotListener snapshotListener;
 
     /**
      * create an empty blockchain with just a genesis block. Assume {@code genesisBlock} is a valid
@@ -36,21 +71,113 @@ public class BlockChain {
     public BlockChain(Block genesisBlock) {
         // IMPLEMENT THIS
         transactionPool = new TransactionPool();
+        orphanTransactionPool = new OrphanTransactionPool();
+        orphanBlockPool = new OrphanBlockPool();
+        orphanListeners = new ArrayList<>();
         blockChainHead = new ArrayList<>();
-        maxHeightBlockWrapper = new BlockWrapper(genesisBlock, 1, getUTXOPoolForBlock(genesisBlock));
+        blockIndex = new ConcurrentHashMap<>();
+        maxHeightUtxoPool = getUTXOPoolForBlock(genesisBlock);
+        // The genesis block is never rolled back, so it has no undo data
+        maxHeightBlockWrapper = new BlockWrapper(genesisBlock, 1, null, null);
+        maxHeightBlockWrapper.setRootUtxoPool(maxHeightUtxoPool);
         blockChainHead.add(maxHeightBlockWrapper);
+        blockIndex.put(new HashWrapper(genesisBlock.getHash()), maxHeightBlockWrapper);
+        publishTip();
+    }
+
+    /**
+     * create an empty blockchain with just a genesis block, like {@link #BlockChain(Block)}, that
+     * writes every block it adds to {@code blockStore}. Only the max height block is then kept in
+     * memory, the others are read back from the store when needed, and blocks that fall out of the
+     * CUT_OFF_AGE window can still be found with {@link #getBlock(byte[])}.
+     */
+    public BlockChain(Block genesisBlock, BlockStore blockStore) throws IOException {
+        this(genesisBlock);
+        this.blockStore = blockStore;
+        blockStore.put(genesisBlock);
+    }
+
+    /**
+     * restart a blockchain at the max height block of the snapshot in {@code snapshotFile}, written
+     * by {@link #writeSnapshot(Path)}, with the UTXO pool, the blocks within the CUT_OFF_AGE window
+     * and the transaction pool it had then. If {@code blockStore} is not null, the blockchain
+     * writes its blocks to it as with {@link #BlockChain(Block, BlockStore)}. This takes time
+     * proportional to the size of the snapshot, whatever the height of the blockchain.
+     */
+    public BlockChain(Path snapshotFile, BlockStore blockStore) throws IOException {
+        transactionPool = new TransactionPool();
+        orphanTransactionPool = new OrphanTransactionPool();
+        orphanBlockPool = new OrphanBlockPool();
+        orphanListeners = new ArrayList<>();
+        blockChainHead = new ArrayList<>();
+        blockIndex = new ConcurrentHashMap<>();
+        this.blockStore = blockStore;
+
+        try {
+            readSnapshot(new ChainSnapshot.Reader(snapshotFile, keyRegistry));
+        } catch (BufferUnderflowException | IndexOutOfBoundsException x) {
+            throw new IOException("Truncated blockchain snapshot: " + snapshotFile, x);
+        }
     }
 
     /** Get the maximum height block */
     public Block getMaxHeightBlock() {
         // IMPLEMENT THIS
-        return maxHeightBlockWrapper.getBlock();
+        return tip.get().getBlock();
     }
 
     /** Get the UTXOPool for mining a new block on top of max height block */
     public UTXOPool getMaxHeightUTXOPool() {
         // IMPLEMENT THIS
-        return maxHeightBlockWrapper.getUtxoPool();
+        return tip.get().getUTXOPool();
+    }
+
+    /**
+     * Get the maximum height block together with its height and UTXO pool, which stay consistent
+     * with each other while blocks are added by other threads
+     */
+    public Tip getTip() {
+        return tip.get();
+    }
+
+    /**
+     * Get the block with hash {@code hash}, or null if no such block is within the CUT_OFF_AGE
+     * window of the blockchain, or in the block store of the blockchain if it has one
+     */
+    public Block getBlock(byte[] hash) {
+        BlockWrapper blockWrapper = getBlockWrapper(hash);
+        if (blockWrapper != null) {
+            return blockWrapper.getBlock();
+        }
+        return blockStore == null || hash == null ? null : blockStore.getBlock(hash);
+    }
+
+    /**
+     * Get the height of the block with hash {@code hash}, or -1 if no such block is within the
+     * CUT_OFF_AGE window of the blockchain
+     */
+    public int getHeight(byte[] hash) {
+        BlockWrapper blockWrapper = getBlockWrapper(hash);
+        return blockWrapper == null ? -1 : blockWrapper.getHeight();
+    }
+
+    /** Get whether the block with hash {@code hash} waits in the orphan pool for its parent */
+    public synchronized boolean isOrphan(byte[] hash) {
+        return hash != null && orphanBlockPool.contains(hash);
+    }
+
+    /** Get whether the transaction with hash {@code txHash} waits in the orphan pool for its parents */
+    public synchronized boolean isOrphanTransaction(byte[] txHash) {
+        return txHash != null && orphanTransactionPool.contains(txHash);
+    }
+
+    /**
+     * Tell {@code listener} what becomes of each block that waits in the orphan pool: whether it is
+     * added once its parent is, or dropped. The listener is called under the lock of the
+     * blockchain, so it must not wait for other threads.
+     */
+    synchronized void addOrphanListener(OrphanListener listener) {
+        orphanListeners.add(listener);
     }
 
     /** Get the transaction pool to mine a new block */
@@ -68,11 +195,71 @@ public class BlockChain {
        * For example, you can try creating a new block over the genesis block (i.e. create a block at
 	   * height 2) if the current blockchain height is less than or equal to CUT_OFF_AGE + 1. As soon as
 	   * the current blockchain height exceeds CUT_OFF_AGE + 1, you cannot create a new block at height 2.
+     * <p>
+     * A block whose parent is unknown yet waits in a bounded orphan pool, and is added as soon as
+     * its parent is, followed by the orphans waiting for it in turn. The orphans waiting for a
+     * block that can't be added are dropped.
      * 
      * @return true if block is successfully added
      */
     public boolean addBlock(Block block) {
         // IMPLEMENT THIS
+        return addBlock(block, false);
+    }
+
+    /**
+     * Add {@code block} to the blockchain like {@link #addBlock(Block)}, except that if
+     * {@code isValidated} is true, the transactions of {@code block} were already validated on top
+     * of its parent, so they aren't validated again.
+     */
+    synchronized boolean addBlock(Block block, boolean isValidated) {
+        if (!connectBlock(block, isValidated)) {
+            // The orphans waiting for a block that can't be added can't be added either
+            if (block.getHash() != null && !orphanBlockPool.contains(block.getHash())
+                    && getBlockWrapper(block.getHash()) == null) {
+                dropOrphansOf(block);
+            }
+            return false;
+        }
+        connectOrphansOf(block);
+        return true;
+    }
+
+    /**
+     * Add {@code blocks} in order, as when syncing a blockchain. The blocks that each extend the max
+     * height block, as during an initial sync, are added in runs: each run is applied to a single
+     * working UTXO pool, and the pruning of old blocks, the update of the transaction pool and the
+     * publication of the max height block are done once at its end. A run ends after a block that
+     * orphans wait for, which are then added, as {@link #addBlock(Block)} would right after it. The
+     * other blocks are added one by one with {@link #addBlock(Block)}.
+     * <p>
+     * The blocks added, the blocks kept, the max height block, its UTXO pool and the transactions
+     * of the transaction pool are the same as if all of {@code blocks} were added one by one with
+     * {@link #addBlock(Block)}. Only readers of
+     * {@link #getTip()} on other threads and snapshots can tell the difference: the max height
+     * blocks within a run are never published, and a snapshot due within a run is written at its
+     * end.
+     *
+     * @return the number of blocks of {@code blocks} that were added
+     */
+    public synchronized int importBlocks(List<Block> blocks) {
+        int numAdded = 0;
+        int i = 0;
+        while (i < blocks.size()) {
+            Run run = extendMaxHeightBlock(blocks, i);
+            numAdded += run.numAdded;
+            i += run.numAdded;
+            if (run.isRejected) {
+                i++;
+            } else if (run.numAdded == 0 && addBlock(blocks.get(i++), false)) {
+                numAdded++;
+            }
+        }
+        return numAdded;
+    }
+
+    // Adds block on top of its parent, or keeps it in the orphan pool if the parent is unknown
+    private boolean connectBlock(Block block, boolean isValidated) {
         if (block.getPrevBlockHash() == null || block.getHash() == null) {
             return false;
         }
@@ -81,9 +268,17 @@ public class BlockChain {
             return false;
         }
 
-        BlockWrapper parentBlockWrapper = getParentBlockWrapper(block.getPrevBlockHash());
+        // The same block can't be added twice
+        if (getBlockWrapper(block.getHash()) != null) {
+            return false;
+        }
+
+        BlockWrapper parentBlockWrapper = getBlockWrapper(block.getPrevBlockHash());
 
         if (parentBlockWrapper == null) {
+            for (Block evicted : orphanBlockPool.addBlock(block)) {
+                notifyOrphanListeners(evicted, false);
+            }
             return false;
         }
 
@@ -92,36 +287,375 @@ public class BlockChain {
             return false;
         }
 
-        TxHandler txHandler = new TxHandler(parentBlockWrapper.getUtxoPool());
-        if (!isValidBlockTransactions(block, txHandler)) {
+        UTXOPool parentUtxoPool = getUTXOPool(parentBlockWrapper);
+        if (!isValidated && !isValidBlockTransactions(block, new TxHandler(parentUtxoPool))) {
+            return false;
+        }
+
+        if (blockStore != null && !storeBlock(block)) {
             return false;
         }
 
-        handleAddingNewBlock(block, parentBlockWrapper, txHandler.getUTXOPool());
+        UTXOPool utxoPool = new UTXOPool(parentUtxoPool);
+        BlockUndo undo = BlockUndo.apply(block, utxoPool);
+        handleAddingNewBlock(block, parentBlockWrapper, utxoPool, undo);
+        countAddedBlocks(1);
         return true;
     }
 
-    /** Add a transaction to the transaction pool */
+    // Adds the orphans waiting for block, and then the ones waiting for them in turn
+    private void connectOrphansOf(Block block) {
+        ArrayDeque<Block> orphans = new ArrayDeque<>(orphanBlockPool.removeChildrenOf(block.getHash()));
+        while (!orphans.isEmpty()) {
+            Block orphan = orphans.poll();
+            if (connectBlock(orphan, false) || getBlockWrapper(orphan.getHash()) != null) {
+                notifyOrphanListeners(orphan, true);
+                orphans.addAll(orphanBlockPool.removeChildrenOf(orphan.getHash()));
+            } else {
+                notifyOrphanListeners(orphan, false);
+                dropOrphansOf(orphan);
+            }
+        }
+    }
+
+    // Drops the orphans waiting for block, which can't be added, and then the ones waiting for them
+    // in turn
+    private void dropOrphansOf(Block block) {
+        ArrayDeque<Block> orphans = new ArrayDeque<>(orphanBlockPool.removeChildrenOf(block.getHash()));
+        while (!orphans.isEmpty()) {
+            Block orphan = orphans.poll();
+            notifyOrphanListeners(orphan, false);
+            orphans.addAll(orphanBlockPool.removeChildrenOf(orphan.getHash()));
+        }
+    }
+
+    private void notifyOrphanListeners(Block orphan, boolean isAdded) {
+        for (OrphanListener listener : orphanListeners) {
+            listener.orphanResolved(orphan, isAdded);
+        }
+    }
+
+    /**
+     * Adds the blocks of {@code blocks} from index {@code from} on as long as each one is valid on
+     * top of the max height block, and up to the first one that orphans wait for, applying them to
+     * one working UTXO pool. Only the UTXO pool of the last one is kept, the others being derived
+     * from it with the undo data of the blocks. A block whose transactions are invalid ends the run,
+     * and is rejected as {@link #addBlock(Block)} would reject it, so that they aren't validated a
+     * second time.
+     */
+    private Run extendMaxHeightBlock(List<Block> blocks, int from) {
+        BlockWrapper oldMaxHeightBlockWrapper = maxHeightBlockWrapper;
+        UTXOPool utxoPool = new UTXOPool(maxHeightUtxoPool);
+        int to = from;
+        int warmedTo = from;
+        Block rejectedBlock = null;
+        while (to < blocks.size()) {
+            if (to == warmedTo) {
+                warmedTo = warmSignatureCache(blocks, to, utxoPool);
+            }
+            Block block = blocks.get(to);
+            if (block.getHash() == null || !Arrays.equals(block.getPrevBlockHash(), maxHeightBlockWrapper.getHash())
+                    || !isValidCoinBaseTransaction(block.getCoinbase()) || getBlockWrapper(block.getHash()) != null) {
+                break;
+            }
+            if (!isValidBlockTransactions(block, new TxHandler(utxoPool))) {
+                rejectedBlock = block;
+                break;
+            }
+            if (blockStore != null && !storeBlock(block)) {
+                break;
+            }
+
+            BlockUndo undo = BlockUndo.apply(block, utxoPool);
+            BlockWrapper blockWrapper = new BlockWrapper(block, maxHeightBlockWrapper.getHeight() + 1, undo,
+                    maxHeightBlockWrapper);
+            maxHeightBlockWrapper.addChild(blockWrapper);
+            blockIndex.put(new HashWrapper(block.getHash()), blockWrapper);
+            if (maxHeightBlockWrapper != oldMaxHeightBlockWrapper) {
+                maxHeightBlockWrapper.releaseBlock();
+            }
+            maxHeightBlockWrapper = blockWrapper;
+            to++;
+            // Ends the run, so that its orphans are added on top of the blockchain as it is now
+            if (orphanBlockPool.hasChildren(block.getHash())) {
+                break;
+            }
+        }
+        if (to > from) {
+            maxHeightUtxoPool = utxoPool;
+            // Before pruning, which may cut the new branch off the old max height block
+            updateTransactionPoolForMaxHeightBlock(oldMaxHeightBlockWrapper, maxHeightBlockWrapper);
+            oldMaxHeightBlockWrapper.releaseBlock();
+            pruneBlockChainHead();
+            publishTip();
+            countAddedBlocks(to - from);
+            connectOrphansOf(blocks.get(to - 1));
+        }
+        // The orphans waiting for a block that can't be added can't be added either
+        if (rejectedBlock != null && !orphanBlockPool.contains(rejectedBlock.getHash())
+                && getBlockWrapper(rejectedBlock.getHash()) == null) {
+            dropOrphansOf(rejectedBlock);
+        }
+        return new Run(to - from, rejectedBlock != null);
+    }
+
+    /**
+     * Verifies in parallel the signatures of the blocks of {@code blocks} from index {@code from} on
+     * that follow each other on top of the max height block, whose pool is {@code utxoPool}, up to
+     * MAX_IMPORT_SIGNATURES inputs so that they aren't evicted from the signature cache before use
+     *
+     * @return the index of the first block whose signatures weren't verified
+     */
+    private int warmSignatureCache(List<Block> blocks, int from, UTXOPool utxoPool) {
+        ArrayList<Transaction> txs = new ArrayList<>();
+        byte[] prevBlockHash = maxHeightBlockWrapper.getHash();
+        int numInputs = 0;
+        int to = from;
+        while (to < blocks.size() && numInputs < MAX_IMPORT_SIGNATURES
+                && Arrays.equals(blocks.get(to).getPrevBlockHash(), prevBlockHash)) {
+            Block block = blocks.get(to++);
+            txs.add(block.getCoinbase());
+            for (Transaction tx : block.getTransactions()) {
+                txs.add(tx);
+                numInputs += tx.numInputs();
+            }
+            prevBlockHash = block.getHash();
+        }
+        if (to - from > 1) {
+            new TxHandler(utxoPool).warmSignatureCache(txs.toArray(new Transaction[0]));
+        }
+        return Math.max(to, from + 1);
+    }
+
+    // Writes a snapshot if numBlocks more added blocks make snapshotInterval since the last one. A
+    // failed snapshot is reported to snapshotListener, and tried again snapshotInterval blocks later.
+    private void countAddedBlocks(int numBlocks) {
+        blocksSinceSnapshot += numBlocks;
+        if (snapshotFile != null && blocksSinceSnapshot >= snapshotInterval) {
+            blocksSinceSnapshot = 0;
+            try {
+                writeSnapshot(snapshotFile);
+            } catch (IOException x) {
+                snapshotListener.snapshotFailed(snapshotFile, x);
+            }
+        }
+    }
+
+    /**
+     * Write a snapshot of the blockchain to {@code file} every {@code blockInterval} added blocks,
+     * from which it can be restarted with {@link #BlockChain(Path, BlockStore)}. The snapshots are
+     * written by the thread that adds the blocks, and {@code listener} is told of each one that
+     * fails, under the lock of the blockchain.
+     */
+    public synchronized void enableSnapshots(Path file, int blockInterval, SnapshotListener listener) {
+        snapshotFile = file;
+        snapshotInterval = blockInterval;
+        snapshotListener = listener;
+        blocksSinceSnapshot = 0;
+    }
+
+    /**
+     * Write a snapshot of the blockchain to {@code file}: the UTXO pool of the max height block,
+     * the blocks within the CUT_OFF_AGE window with their undo data, and the transaction pool. The
+     * snapshot is written next to {@code file} and forced to the disk first, and then moved over
+     * it, so that a failure or a crash leaves the last snapshot in place.
+     */
+    public synchronized void writeSnapshot(Path file) throws IOException {
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            writeSnapshotTo(tmpFile);
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException x) {
+            try {
+                Files.deleteIfExists(tmpFile);
+            } catch (IOException y) {
+                x.addSuppressed(y);
+            }
+            throw x;
+        }
+    }
+
+    // Writes the snapshot of writeSnapshot to file, and forces it to the disk
+    private void writeSnapshotTo(Path file) throws IOException {
+        try (ChainSnapshot.Writer writer = new ChainSnapshot.Writer(file, keyRegistry)) {
+            writer.writeUTXOPool(maxHeightUtxoPool);
+
+            // Parents come before their children
+            ArrayList<BlockWrapper> blockWrappers = new ArrayList<>(blockChainHead);
+            for (int i = 0; i < blockWrappers.size(); i++) {
+                blockWrappers.addAll(blockWrappers.get(i).getChildren());
+            }
+            IdentityHashMap<BlockWrapper, Integer> numbers = new IdentityHashMap<>();
+            writer.writeInt(blockWrappers.size());
+            for (BlockWrapper blockWrapper : blockWrappers) {
+                BlockWrapper parent = blockWrapper.getParent();
+                numbers.put(blockWrapper, numbers.size());
+                writer.writeInt(parent == null ? -1 : numbers.get(parent));
+                writer.writeInt(blockWrapper.getHeight());
+                writer.writeBlock(blockWrapper.getBlock());
+                writer.writeBoolean(blockWrapper.getUndo() != null);
+                if (blockWrapper.getUndo() != null) {
+                    blockWrapper.getUndo().write(writer);
+                }
+                if (parent == null) {
+                    writer.writeUTXOPoolChanges(maxHeightUtxoPool, blockWrapper.getRootUtxoPool());
+                }
+            }
+            writer.writeInt(numbers.get(maxHeightBlockWrapper));
+
+            ArrayList<Transaction> txs = transactionPool.getTransactions();
+            writer.writeInt(txs.size());
+            for (Transaction tx : txs) {
+                writer.writeDouble(transactionPool.getFee(tx.getHash()));
+                writer.writeTransaction(tx);
+            }
+        }
+    }
+
+    /**
+     * Add a transaction to the transaction pool, ranked by its fee, if it is valid on top of the max
+     * height block and the transactions already in the pool, and if its package in the pool fits
+     * in the limits of {@link PackageSelector}. A transaction claiming outputs of transactions that
+     * are unknown yet waits in a bounded orphan pool until they are added.
+     */
     public void addTransaction(Transaction tx) {
         // IMPLEMENT THIS
-        transactionPool.addTransaction(tx);
+        admitTransaction(tx);
+    }
+
+    /**
+     * Add {@code tx} to the transaction pool like {@link #addTransaction(Transaction)}
+     *
+     * @return the transactions added to the pool: {@code tx} if it was, followed by the orphans
+     *         that could be added after it
+     */
+    synchronized ArrayList<Transaction> admitTransaction(Transaction tx) {
+        ArrayList<Transaction> admittedTxs = new ArrayList<>();
+        ArrayDeque<Transaction> txs = new ArrayDeque<>();
+        txs.add(tx);
+        while (!txs.isEmpty()) {
+            Transaction current = txs.poll();
+            HashSet<ByteArrayWrapper> missingParents = new HashSet<>();
+            if (!isValidPoolTransaction(current, missingParents)) {
+                if (!missingParents.isEmpty()) {
+                    orphanTransactionPool.addTransaction(current, missingParents);
+                }
+                continue;
+            }
+
+            transactionPool.addTransaction(current, maxHeightUtxoPool);
+            // The pool may have evicted it right away if it is full
+            if (transactionPool.getTransaction(current.getHash()) == current) {
+                admittedTxs.add(current);
+                txs.addAll(orphanTransactionPool.removeChildrenOf(current.getHash()));
+            }
+        }
+        return admittedTxs;
+    }
+
+    // Rebuilds the state written by writeSnapshot
+    private void readSnapshot(ChainSnapshot.Reader reader) throws IOException {
+        maxHeightUtxoPool = reader.readUTXOPool();
+
+        int numBlocks = reader.readInt();
+        ArrayList<BlockWrapper> blockWrappers = new ArrayList<>(numBlocks);
+        for (int i = 0; i < numBlocks; i++) {
+            int parentNumber = reader.readInt();
+            BlockWrapper parent = parentNumber < 0 ? null : blockWrappers.get(parentNumber);
+            int height = reader.readInt();
+            Block block = reader.readBlock();
+            BlockUndo undo = reader.readBoolean() ? BlockUndo.read(reader) : null;
+
+            BlockWrapper blockWrapper = new BlockWrapper(block, height, undo, parent);
+            if (parent == null) {
+                blockWrapper.setRootUtxoPool(reader.readUTXOPoolChanges(maxHeightUtxoPool));
+                blockChainHead.add(blockWrapper);
+            } else {
+                parent.addChild(blockWrapper);
+            }
+            blockWrappers.add(blockWrapper);
+            blockIndex.put(new HashWrapper(block.getHash()), blockWrapper);
+        }
+        maxHeightBlockWrapper = blockWrappers.get(reader.readInt());
+        publishTip();
+
+        int numTxs = reader.readInt();
+        for (int i = 0; i < numTxs; i++) {
+            double fee = reader.readDouble();
+            transactionPool.addTransaction(reader.readTransaction(), fee);
+        }
+
+        if (blockStore != null) {
+            for (BlockWrapper blockWrapper : blockWrappers) {
+                blockStore.put(blockWrapper.getBlock());
+                if (blockWrapper != maxHeightBlockWrapper) {
+                    blockWrapper.releaseBlock();
+                }
+            }
+        }
+    }
+
+    private BlockWrapper getBlockWrapper(byte[] hash) {
+        if (hash == null) {
+            return null;
+        }
+
+        return blockIndex.get(new HashWrapper(hash));
     }
 
-    private BlockWrapper getParentBlockWrapper(byte[] parentHash) {
-        Queue<BlockWrapper> blockWrapperQueue = new LinkedList<>(blockChainHead);
-        while (!blockWrapperQueue.isEmpty()) {
-            BlockWrapper blockWrapper = blockWrapperQueue.poll();
-            if (Arrays.equals(blockWrapper.getBlock().getHash(), parentHash)) {
-                return blockWrapper;
+    // Checks tx on top of the UTXO pool of the max height block and the outputs of the transactions
+    // in the pool, which it must not conflict with, and that its package in the pool is within the
+    // limits of PackageSelector. The hashes of the claimed transactions that are found in neither,
+    // nor confirmed within the CUT_OFF_AGE window, are added to missingParents.
+    private boolean isValidPoolTransaction(Transaction tx, HashSet<ByteArrayWrapper> missingParents) {
+        if (tx == null || tx.getHash() == null || transactionPool.getTransaction(tx.getHash()) != null
+                || orphanTransactionPool.contains(tx.getHash())) {
+            return false;
+        }
+
+        UTXOPool utxoPool = new UTXOPool(maxHeightUtxoPool);
+        for (Transaction.Input input : tx.getInputs()) {
+            if (input == null || input.prevTxHash == null) {
+                return false;
+            }
+
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            if (transactionPool.getSpendingTransaction(utxo) != null) {
+                return false;
+            }
+            if (utxoPool.contains(utxo)) {
+                continue;
             }
 
-            blockWrapperQueue.addAll(blockWrapper.getChildren());
+            Transaction parent = transactionPool.getTransaction(input.prevTxHash);
+            if (parent == null) {
+                // The output of a confirmed transaction that isn't in the UTXO pool is spent
+                if (isConfirmed(input.prevTxHash)) {
+                    return false;
+                }
+                missingParents.add(new ByteArrayWrapper(input.prevTxHash));
+            } else if (input.outputIndex >= 0 && parent.getOutput(input.outputIndex) != null) {
+                utxoPool.addUTXO(utxo, parent.getOutput(input.outputIndex));
+            }
         }
 
-        return null;
+        return missingParents.isEmpty() && new TxHandler(utxoPool).isValidTx(tx)
+                && transactionPool.isWithinPackageLimits(tx, PackageSelector.MAX_PACKAGE_TXS, PackageSelector.MAX_PACKAGE_BYTES);
+    }
+
+    // Whether the transaction with hash txHash is in the max height block or one of its ancestors
+    // within the CUT_OFF_AGE window
+    private boolean isConfirmed(byte[] txHash) {
+        HashWrapper.Probe probe = new HashWrapper.Probe().set(txHash);
+        for (BlockWrapper blockWrapper = maxHeightBlockWrapper; blockWrapper != null; blockWrapper = blockWrapper.getParent()) {
+            if (blockWrapper.containsTransaction(probe)) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    private boolean isValidCoinBaseTransaction(Transaction tx) {
+    static boolean isValidCoinBaseTransaction(Transaction tx) {
       return tx.numOutputs() == 1 && tx.getOutput(0).value == Block.COINBASE;
     }
 
@@ -133,38 +667,88 @@ public class BlockChain {
     }
 
     // May we need to the maxHeightBlock or the blockchainHead, it will depend on the height
-    private void handleAddingNewBlock(Block block, BlockWrapper parentBlockWrapper, UTXOPool utxoPool) {
+    private void handleAddingNewBlock(Block block, BlockWrapper parentBlockWrapper, UTXOPool utxoPool, BlockUndo undo) {
         int currentBlockHeight = parentBlockWrapper.getHeight() + 1;
+        BlockWrapper oldMaxHeightBlockWrapper = maxHeightBlockWrapper;
 
-        removeTransactionsFromTransactionPool(block);
+        BlockWrapper currentBlockWrapper = new BlockWrapper(block, currentBlockHeight, undo, parentBlockWrapper);
+        parentBlockWrapper.addChild(currentBlockWrapper);
+        blockIndex.put(new HashWrapper(block.getHash()), currentBlockWrapper);
 
-        utxoPool.addUTXO(new UTXO(block.getCoinbase().getHash(), 0), block.getCoinbase().getOutput(0));
+        updateHeadOrMaxHeightBlock(currentBlockWrapper, utxoPool);
 
-        BlockWrapper currentBlockWrapper = new BlockWrapper(block, currentBlockHeight, utxoPool);
-        parentBlockWrapper.addChild(currentBlockWrapper);
+        if (maxHeightBlockWrapper != oldMaxHeightBlockWrapper) {
+            updateTransactionPoolForMaxHeightBlock(oldMaxHeightBlockWrapper, maxHeightBlockWrapper);
+            oldMaxHeightBlockWrapper.releaseBlock();
+        } else {
+            currentBlockWrapper.releaseBlock();
+        }
+    }
 
-        updateHeadOrMaxHeightBlock(currentBlockWrapper);
+    private boolean storeBlock(Block block) {
+        try {
+            blockStore.put(block);
+            return true;
+        } catch (IOException x) {
+            x.printStackTrace(System.err);
+            return false;
+        }
     }
 
-    private void updateHeadOrMaxHeightBlock(BlockWrapper blockWrapper) {
+    private void updateHeadOrMaxHeightBlock(BlockWrapper blockWrapper, UTXOPool utxoPool) {
         if (blockWrapper.getHeight() > maxHeightBlockWrapper.getHeight()) {
             maxHeightBlockWrapper = blockWrapper;
+            maxHeightUtxoPool = utxoPool;
+            publishTip();
         }
 
-        int currentHeadHeight = blockChainHead.get(0).getHeight();
-        if (maxHeightBlockWrapper.getHeight() - currentHeadHeight >= CUT_OFF_AGE + 1) {
+        pruneBlockChainHead();
+    }
 
-            ArrayList<BlockWrapper> newBlockchainHead = new ArrayList<>();
-            for (BlockWrapper newBlock : blockChainHead) {
-                newBlockchainHead.addAll(newBlock.getChildren());
-            }
+    // Drops the blocks that fell out of the CUT_OFF_AGE window, however many levels of them there are
+    private void pruneBlockChainHead() {
+        int prunedLevels = maxHeightBlockWrapper.getHeight() - blockChainHead.get(0).getHeight() - CUT_OFF_AGE;
+        if (prunedLevels <= 0) {
+            return;
+        }
 
-            blockChainHead = newBlockchainHead;
+        ArrayList<BlockWrapper> newBlockchainHead = blockChainHead;
+        for (int i = 0; i < prunedLevels; i++) {
+            ArrayList<BlockWrapper> children = new ArrayList<>();
+            for (BlockWrapper newBlock : newBlockchainHead) {
+                children.addAll(newBlock.getChildren());
+                blockIndex.remove(new HashWrapper(newBlock.getHash()));
+            }
+            newBlockchainHead = children;
         }
+        for (BlockWrapper newHead : newBlockchainHead) {
+            // One level up, the pool of the old root is closest; further up, the max height one is
+            UTXOPool rootUtxoPool;
+            if (prunedLevels == 1) {
+                rootUtxoPool = new UTXOPool(newHead.getParent().getRootUtxoPool());
+                newHead.getUndo().redo(rootUtxoPool);
+            } else {
+                rootUtxoPool = getUTXOPool(newHead);
+            }
+            newHead.setRootUtxoPool(rootUtxoPool);
+        }
+        // Let the pruned blocks be garbage collected, once all the new roots have their pool
+        for (BlockWrapper newHead : newBlockchainHead) {
+            newHead.parent = null;
+        }
+
+        blockChainHead = newBlockchainHead;
+    }
+
+    // Copying the pool freezes it, so neither the published copy nor maxHeightUtxoPool, which is
+    // never modified afterwards, changes under the readers sharing its state
+    private void publishTip() {
+        tip.set(new Tip(maxHeightBlockWrapper.getBlock(), maxHeightBlockWrapper.getHeight(),
+                new UTXOPool(maxHeightUtxoPool)));
     }
 
     private UTXOPool getUTXOPoolForBlock(Block block) {
-        UTXOPool utxoPool = new UTXOPool();
+        UTXOPool utxoPool = new UTXOPool(keyRegistry);
         utxoPool.addUTXO(new UTXO(block.getCoinbase().getHash(), 0), block.getCoinbase().getOutput(0));
 
         for (Transaction tx : block.getTransactions()) {
@@ -178,31 +762,269 @@ public class BlockChain {
     private void removeTransactionsFromTransactionPool(Block block) {
         for (Transaction tx : block.getTransactions()) {
             transactionPool.removeTransaction(tx.getHash());
+            for (Transaction.Input input : tx.getInputs()) {
+                Transaction conflictingTx = transactionPool.getSpendingTransaction(new UTXO(input.prevTxHash, input.outputIndex));
+                if (conflictingTx != null) {
+                    removeTransactionWithDescendants(conflictingTx);
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the transaction pool after the max height block changed from {@code oldMaxHeight} to
+     * {@code newMaxHeight}. Walking back from both to their fork point, the blocks of the new
+     * branch are connected: their transactions leave the pool along with the ones conflicting with
+     * them. The blocks of the old branch are disconnected: their transactions that the new branch
+     * doesn't contain go back to the pool if they are still valid, and are dropped otherwise. This
+     * takes time proportional to the depth of the reorganization.
+     */
+    private void updateTransactionPoolForMaxHeightBlock(BlockWrapper oldMaxHeight, BlockWrapper newMaxHeight) {
+        ArrayList<BlockWrapper> connectedBlocks = new ArrayList<>();
+        ArrayList<BlockWrapper> disconnectedBlocks = new ArrayList<>();
+        findForkPoint(oldMaxHeight, newMaxHeight, disconnectedBlocks, connectedBlocks);
+        Collections.reverse(connectedBlocks);
+        Collections.reverse(disconnectedBlocks);
+
+        for (BlockWrapper connectedBlock : connectedBlocks) {
+            removeTransactionsFromTransactionPool(connectedBlock.getBlock());
+        }
+        for (BlockWrapper disconnectedBlock : disconnectedBlocks) {
+            for (Transaction tx : disconnectedBlock.getBlock().getTransactions()) {
+                if (!containsTransaction(connectedBlocks, tx.getHash())) {
+                    admitTransaction(tx);
+                }
+            }
+        }
+        // A transaction of the old branch that couldn't go back conflicts with the new branch, or
+        // claims an output of one that does, so it is dropped rather than left in the orphan pool
+        for (BlockWrapper disconnectedBlock : disconnectedBlocks) {
+            for (Transaction tx : disconnectedBlock.getBlock().getTransactions()) {
+                orphanTransactionPool.removeTransaction(tx.getHash());
+            }
+        }
+        // The transactions claiming outputs that exist neither on the new branch nor in the pool
+        // anymore, like the coinbase outputs of the old branch, are evicted with their descendants
+        UTXOPool utxoPool = maxHeightUtxoPool;
+        for (BlockWrapper disconnectedBlock : disconnectedBlocks) {
+            Block block = disconnectedBlock.getBlock();
+            removeSpendersOfMissingOutputs(block.getCoinbase(), utxoPool);
+            for (Transaction tx : block.getTransactions()) {
+                removeSpendersOfMissingOutputs(tx, utxoPool);
+            }
+        }
+        for (BlockWrapper connectedBlock : connectedBlocks) {
+            Block block = connectedBlock.getBlock();
+            for (Transaction orphan : orphanTransactionPool.removeChildrenOf(block.getCoinbase().getHash())) {
+                admitTransaction(orphan);
+            }
+            for (Transaction tx : block.getTransactions()) {
+                for (Transaction orphan : orphanTransactionPool.removeChildrenOf(tx.getHash())) {
+                    admitTransaction(orphan);
+                }
+            }
+        }
+    }
+
+    // Whether one of the blocks of branch contains the transaction with hash txHash
+    private boolean containsTransaction(ArrayList<BlockWrapper> branch, byte[] txHash) {
+        HashWrapper.Probe probe = new HashWrapper.Probe().set(txHash);
+        for (BlockWrapper blockWrapper : branch) {
+            if (blockWrapper.containsTransaction(probe)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Walks back from {@code from} and {@code to} to the block they both descend from, adding the
+     * blocks on the way to {@code fromBranch} and {@code toBranch}, highest first.
+     *
+     * @return the fork point, or null if the branches only meet below the pruned blocks, in which
+     *         case both are walked back to their roots
+     */
+    private BlockWrapper findForkPoint(BlockWrapper from, BlockWrapper to,
+                                       ArrayList<BlockWrapper> fromBranch, ArrayList<BlockWrapper> toBranch) {
+        while (from != to) {
+            if (to != null && (from == null || to.getHeight() >= from.getHeight())) {
+                toBranch.add(to);
+                to = to.getParent();
+            } else {
+                fromBranch.add(from);
+                from = from.getParent();
+            }
+        }
+        return from;
+    }
+
+    /**
+     * Derives the UTXO pool of {@code blockWrapper} from the one of the max height block, rolled
+     * back to their fork point and applied forward from there. Without a fork point, it is derived
+     * from the pool kept for the root of {@code blockWrapper} instead. Either way, this takes time
+     * proportional to the size of the blocks in between. The returned pool must not be modified.
+     */
+    private UTXOPool getUTXOPool(BlockWrapper blockWrapper) {
+        if (blockWrapper == maxHeightBlockWrapper) {
+            return maxHeightUtxoPool;
+        }
+
+        ArrayList<BlockWrapper> rolledBackBlocks = new ArrayList<>();
+        ArrayList<BlockWrapper> appliedBlocks = new ArrayList<>();
+        UTXOPool utxoPool;
+        if (findForkPoint(maxHeightBlockWrapper, blockWrapper, rolledBackBlocks, appliedBlocks) != null) {
+            utxoPool = new UTXOPool(maxHeightUtxoPool);
+            for (BlockWrapper rolledBackBlock : rolledBackBlocks) {
+                rolledBackBlock.getUndo().undo(utxoPool);
+            }
+        } else {
+            BlockWrapper root = appliedBlocks.remove(appliedBlocks.size() - 1);
+            utxoPool = new UTXOPool(root.getRootUtxoPool());
+        }
+
+        for (int i = appliedBlocks.size() - 1; i >= 0; i--) {
+            appliedBlocks.get(i).getUndo().redo(utxoPool);
+        }
+        return utxoPool;
+    }
+
+    private void removeSpendersOfMissingOutputs(Transaction tx, UTXOPool utxoPool) {
+        if (transactionPool.getTransaction(tx.getHash()) != null) {
+            return;
+        }
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            UTXO utxo = new UTXO(tx.getHash(), i);
+            Transaction spendingTx = transactionPool.getSpendingTransaction(utxo);
+            if (spendingTx != null && !utxoPool.contains(utxo)) {
+                removeTransactionWithDescendants(spendingTx);
+            }
+        }
+    }
+
+    private void removeTransactionWithDescendants(Transaction tx) {
+        ArrayDeque<Transaction> txs = new ArrayDeque<>();
+        txs.add(tx);
+        while (!txs.isEmpty()) {
+            Transaction current = txs.poll();
+            transactionPool.removeTransaction(current.getHash());
+            for (int i = 0; i < current.numOutputs(); i++) {
+                Transaction child = transactionPool.getSpendingTransaction(new UTXO(current.getHash(), i));
+                if (child != null) {
+                    txs.add(child);
+                }
+            }
+        }
+    }
+
+    /** Told what becomes of the blocks that wait in the orphan pool of a blockchain */
+    interface OrphanListener {
+        /** Called once {@code orphan} is added after its parent, or with false once it is dropped */
+        void orphanResolved(Block orphan, boolean isAdded);
+    }
+
+    /** Told when a snapshot enabled by enableSnapshots fails to be written */
+    public interface SnapshotListener {
+        /** Called with the failure of writing the snapshot to {@code file}, which is left as it was */
+        void snapshotFailed(Path file, IOException failure);
+    }
+
+    // The outcome of extendMaxHeightBlock
+    private static class Run {
+        // The number of blocks added
+        private final int numAdded;
+        // Whether the block after them was rejected for its transactions
+        private final boolean isRejected;
+
+        private Run(int numAdded, boolean isRejected) {
+            this.numAdded = numAdded;
+            this.isRejected = isRejected;
+        }
+    }
+
+    /** The max height block of a blockchain, with its height and UTXO pool */
+    public static class Tip {
+        private final Block block;
+        private final int height;
+        private final UTXOPool utxoPool;
+
+        private Tip(Block block, int height, UTXOPool utxoPool) {
+            this.block = block;
+            this.height = height;
+            this.utxoPool = utxoPool;
+        }
+
+        public Block getBlock() {
+            return block;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /** @return a copy of the UTXO pool of the block, which the caller may modify */
+        public UTXOPool getUTXOPool() {
+            return new UTXOPool(utxoPool);
         }
     }
 
     // New class BlockWrapper to save more about each block
     private class BlockWrapper {
-        private Block block;
-        private int height;
+        private final byte[] hash;
+        // null once the block is released to the block store; read by threads that don't hold the
+        // lock of the blockchain
+        private volatile Block block;
+        private final int height;
         private ArrayList<BlockWrapper> children;
-        private UTXOPool utxoPool;
+        private BlockUndo undo;
+        // null for the blocks of blockChainHead
+        private BlockWrapper parent;
+        // The UTXO pool of the block, only kept for the blocks of blockChainHead
+        private UTXOPool rootUtxoPool;
+        // The hashes of the coinbase and transactions of the block, kept when the block is released
+        private final HashSet<HashWrapper> txHashes;
 
-        public BlockWrapper(Block block, int height, UTXOPool utxoPool) {
+        public BlockWrapper(Block block, int height, BlockUndo undo, BlockWrapper parent) {
+            this.hash = block.getHash();
             this.block = block;
             this.height = height;
             this.children = new ArrayList<>();
-            this.utxoPool = utxoPool;
+            this.undo = undo;
+            this.parent = parent;
+            this.txHashes = new HashSet<>();
+            txHashes.add(new HashWrapper(block.getCoinbase().getHash()));
+            for (Transaction tx : block.getTransactions()) {
+                txHashes.add(new HashWrapper(tx.getHash()));
+            }
+        }
+
+        public byte[] getHash() {
+            return hash;
         }
 
         public Block getBlock() {
-            return block;
+            Block current = block;
+            return current != null ? current : blockStore.getBlock(hash);
+        }
+
+        // Drops the block from memory if it can be read back from the block store
+        public void releaseBlock() {
+            if (blockStore != null) {
+                block = null;
+            }
         }
 
         public int getHeight() {
             return height;
         }
 
+        public BlockWrapper getParent() {
+            return parent;
+        }
+
+        public boolean containsTransaction(HashWrapper.Probe txHash) {
+            return txHashes.contains(txHash);
+        }
+
         public ArrayList<BlockWrapper> getChildren() {
             return children;
         }
@@ -211,8 +1033,16 @@ public class BlockChain {
             children.add(child);
         }
 
-        public UTXOPool getUtxoPool() {
-            return utxoPool;
+        public BlockUndo getUndo() {
+            return undo;
+        }
+
+        public UTXOPool getRootUtxoPool() {
+            return rootUtxoPool;
+        }
+
+        public void setRootUtxoPool(UTXOPool rootUtxoPool) {
+            this.rootUtxoPool = rootUtxoPool;
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,331 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Encodes blocks, transactions and UTXOs into a compact binary form and decodes them back. The
+ * hashes are encoded too, but only the stores of this node, which wrote them, trust them when
+ * decoding: {@link #decode(ByteBuffer)} and {@link #decodeTransaction(ByteBuffer)} hash what they
+ * read again, so that a block from a peer can't claim the hash of another block.
+ * <p>
+ * An encoded block starts with a format version, flags and the block hash, followed by the
+ * previous block hash, a table of the public keys of its outputs, each written once, and the
+ * coinbase and transactions, each prefixed by its length. A transaction refers to keys by their
+ * number in the table. An encoded transaction on its own is a version and a key table followed by
+ * the transaction. Counts and lengths are unsigned variable-length integers, byte arrays are
+ * prefixed by their length plus one, or by 0 for null, and keys are X.509 encoded.
+ * <p>
+ * Decoding never trusts the counts and lengths it reads: each must fit in what is left of the
+ * input, so that malformed or truncated input is rejected before anything is allocated for it.
+ * <p>
+ * {@link BlockView} and {@link TransactionView} read the fields of encoded blocks and transactions
+ * in place, without decoding them.
+ */
+public class BlockCodec {
+
+    public static final byte VERSION = 2;
+
+    static final byte MERKLE_ROOT_FLAG = 1;
+    static final byte COINBASE_FLAG = 1;
+
+    /** @return the number of bytes {@code encode(block, buffer)} writes */
+    public static int getEncodedSize(Block block) {
+        KeyTable keys = new KeyTable();
+        keys.add(block.getCoinbase());
+        for (Transaction tx : block.getTransactions())
+            keys.add(tx);
+
+        int size = 2 + getSize(block.getHash()) + getSize(block.getPrevBlockHash()) + keys.getEncodedSize();
+        size += getVarIntSize(block.getTransactions().size() + 1);
+        size += getPrefixedSize(getBodySize(block.getCoinbase(), keys));
+        for (Transaction tx : block.getTransactions())
+            size += getPrefixedSize(getBodySize(tx, keys));
+        return size;
+    }
+
+    /** Writes {@code block} into {@code buffer} at its current position */
+    public static void encode(Block block, ByteBuffer buffer) {
+        KeyTable keys = new KeyTable();
+        keys.add(block.getCoinbase());
+        for (Transaction tx : block.getTransactions())
+            keys.add(tx);
+
+        buffer.put(VERSION);
+        buffer.put(block.usesMerkleRoot() ? MERKLE_ROOT_FLAG : 0);
+        putBytes(buffer, block.getHash());
+        putBytes(buffer, block.getPrevBlockHash());
+        keys.encode(buffer);
+        putVarInt(buffer, block.getTransactions().size() + 1);
+        putBody(buffer, block.getCoinbase(), keys);
+        for (Transaction tx : block.getTransactions())
+            putBody(buffer, tx, keys);
+    }
+
+    /** @return the block hash of the encoded block at the position of {@code buffer}, left as is */
+    public static byte[] decodeHash(ByteBuffer buffer) {
+        ByteBuffer view = buffer.duplicate();
+        try {
+            if (view.get() != VERSION)
+                return null;
+            view.get();
+            return getBytes(view);
+        } catch (BufferUnderflowException | IllegalArgumentException x) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the encoded block at the position of {@code buffer}, which is moved past it, and
+     * computes the hashes of the block and its transactions from what it read
+     *
+     * @return the block, or null if it was encoded in an unknown format, is malformed or truncated,
+     *         or has an invalid key
+     */
+    public static Block decode(ByteBuffer buffer) {
+        return decode(buffer, false);
+    }
+
+    /**
+     * Reads the encoded block at the position of {@code buffer}, which is moved past it. If
+     * {@code trustHashes} is true, the encoded hashes are kept, which is only safe for blocks
+     * this node encoded itself.
+     */
+    static Block decode(ByteBuffer buffer, boolean trustHashes) {
+        BlockView view;
+        try {
+            view = new BlockView(buffer);
+        } catch (BufferUnderflowException | IllegalArgumentException x) {
+            return null;
+        }
+        buffer.position(buffer.position() + view.getEncodedSize());
+        return view.toBlock(trustHashes);
+    }
+
+    /** @return the number of bytes {@code encode(tx, buffer)} writes */
+    public static int getEncodedSize(Transaction tx) {
+        KeyTable keys = new KeyTable();
+        keys.add(tx);
+        return 1 + keys.getEncodedSize() + getPrefixedSize(getBodySize(tx, keys));
+    }
+
+    /** Writes {@code tx} on its own, with its key table, into {@code buffer} at its current position */
+    public static void encode(Transaction tx, ByteBuffer buffer) {
+        KeyTable keys = new KeyTable();
+        keys.add(tx);
+        buffer.put(VERSION);
+        keys.encode(buffer);
+        putBody(buffer, tx, keys);
+    }
+
+    /**
+     * Reads the transaction encoded by {@code encode(tx, buffer)} at the position of
+     * {@code buffer}, which is moved past it, and computes its hash from what it read
+     *
+     * @return the transaction, or null if it was encoded in an unknown format, is malformed or
+     *         truncated, or has an invalid key
+     */
+    public static Transaction decodeTransaction(ByteBuffer buffer) {
+        return decodeTransaction(buffer, false);
+    }
+
+    /** Like {@link #decodeTransaction(ByteBuffer)}, but keeps the encoded hash if {@code trustHash} */
+    static Transaction decodeTransaction(ByteBuffer buffer, boolean trustHash) {
+        TransactionView view;
+        try {
+            view = new TransactionView(buffer);
+        } catch (BufferUnderflowException | IllegalArgumentException x) {
+            return null;
+        }
+        buffer.position(buffer.position() + view.getEncodedSize());
+        return view.toTransaction(trustHash);
+    }
+
+    /** @return the number of bytes {@code encode(utxo, buffer)} writes */
+    public static int getEncodedSize(UTXO utxo) {
+        return getSize(utxo.getTxHash()) + Integer.BYTES;
+    }
+
+    /** Writes {@code utxo}, its transaction hash and output index, into {@code buffer} */
+    public static void encode(UTXO utxo, ByteBuffer buffer) {
+        putBytes(buffer, utxo.getTxHash());
+        buffer.putInt(utxo.getIndex());
+    }
+
+    /** Reads the UTXO at the position of {@code buffer}, which is moved past it */
+    public static UTXO decodeUTXO(ByteBuffer buffer) {
+        byte[] txHash = getBytes(buffer);
+        return new UTXO(txHash, buffer.getInt());
+    }
+
+    /**
+     * @return the keys encoded in {@code keys}, or null if one of them is invalid. Keys are not
+     *         registered, as decoded blocks and transactions may never be connected.
+     */
+    static PublicKey[] decodeKeys(ByteBuffer[] keys) {
+        try {
+            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+            PublicKey[] decoded = new PublicKey[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                byte[] encoded = new byte[keys[i].remaining()];
+                keys[i].duplicate().get(encoded);
+                decoded[i] = keyFactory.generatePublic(new X509EncodedKeySpec(encoded));
+            }
+            return decoded;
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException x) {
+            return null;
+        }
+    }
+
+    private static int getBodySize(Transaction tx, KeyTable keys) {
+        int size = 1 + getSize(tx.getHash()) + getVarIntSize(tx.numInputs()) + getVarIntSize(tx.numOutputs());
+        for (Transaction.Input in : tx.getInputs())
+            size += getSize(in.prevTxHash) + Integer.BYTES + getSize(in.signature);
+        for (Transaction.Output op : tx.getOutputs())
+            size += Double.BYTES + getVarIntSize(keys.getNumber(op) + 1);
+        return size;
+    }
+
+    // Writes tx prefixed by its length
+    private static void putBody(ByteBuffer buffer, Transaction tx, KeyTable keys) {
+        putVarInt(buffer, getBodySize(tx, keys));
+        buffer.put(tx.isCoinbase() ? COINBASE_FLAG : 0);
+        putBytes(buffer, tx.getHash());
+        putVarInt(buffer, tx.numInputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            putBytes(buffer, in.prevTxHash);
+            buffer.putInt(in.outputIndex);
+            putBytes(buffer, in.signature);
+        }
+        putVarInt(buffer, tx.numOutputs());
+        for (Transaction.Output op : tx.getOutputs()) {
+            buffer.putDouble(op.value);
+            putVarInt(buffer, keys.getNumber(op) + 1);
+        }
+    }
+
+    private static int getPrefixedSize(int size) {
+        return getVarIntSize(size) + size;
+    }
+
+    static int getSize(byte[] bytes) {
+        return bytes == null ? 1 : getPrefixedSize(bytes.length + 1) - 1;
+    }
+
+    static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            putVarInt(buffer, 0);
+        } else {
+            putVarInt(buffer, bytes.length + 1);
+            buffer.put(bytes);
+        }
+    }
+
+    static byte[] getBytes(ByteBuffer buffer) {
+        ByteBuffer slice = getBytesSlice(buffer);
+        if (slice == null)
+            return null;
+        byte[] bytes = new byte[slice.remaining()];
+        slice.get(bytes);
+        return bytes;
+    }
+
+    /** @return the byte array at the position of {@code buffer}, in place, or null */
+    static ByteBuffer getBytesSlice(ByteBuffer buffer) {
+        int length = getVarInt(buffer) - 1;
+        return length < 0 ? null : getSlice(buffer, length);
+    }
+
+    /** @return the next {@code length} bytes of {@code buffer}, in place, moving it past them */
+    static ByteBuffer getSlice(ByteBuffer buffer, int length) {
+        if (length > buffer.remaining())
+            throw new BufferUnderflowException();
+        ByteBuffer slice = buffer.slice(buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    static int getVarIntSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0)
+            size++;
+        return size;
+    }
+
+    static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Reads a variable-length integer, which takes at most 5 bytes
+     *
+     * @throws IllegalArgumentException if it doesn't fit in a non-negative int
+     */
+    static int getVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            // The fifth byte only holds the top 3 bits of a non-negative int, and ends the integer
+            if (shift == 28 && (b & ~0x07) != 0)
+                throw new IllegalArgumentException("Variable-length integer too large");
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+
+    /**
+     * Reads the count of an array whose elements each take at least {@code minSize} bytes
+     *
+     * @throws IllegalArgumentException if that many elements can't fit in what is left of
+     *                                  {@code buffer}
+     */
+    static int getCount(ByteBuffer buffer, int minSize) {
+        int count = getVarInt(buffer);
+        if (count > buffer.remaining() / minSize)
+            throw new IllegalArgumentException("Count larger than the input");
+        return count;
+    }
+
+    // The distinct keys of some transactions, numbered in the order they first appear
+    private static class KeyTable {
+        private final HashMap<PublicKey, Integer> numbers = new HashMap<PublicKey, Integer>();
+        private final ArrayList<byte[]> encodedKeys = new ArrayList<byte[]>();
+
+        private void add(Transaction tx) {
+            for (Transaction.Output op : tx.getOutputs()) {
+                if (op.address != null && !numbers.containsKey(op.address)) {
+                    numbers.put(op.address, encodedKeys.size());
+                    encodedKeys.add(op.address.getEncoded());
+                }
+            }
+        }
+
+        // -1 for no key
+        private int getNumber(Transaction.Output op) {
+            return op.address == null ? -1 : numbers.get(op.address);
+        }
+
+        private int getEncodedSize() {
+            int size = getVarIntSize(encodedKeys.size());
+            for (byte[] key : encodedKeys)
+                size += getSize(key);
+            return size;
+        }
+
+        private void encode(ByteBuffer buffer) {
+            putVarInt(buffer, encodedKeys.size());
+            for (byte[] key : encodedKeys)
+                putBytes(buffer, key);
+        }
+    }
+}
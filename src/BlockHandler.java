@@ -1,9 +1,32 @@
 
 import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 
 public class BlockHandler {
     private BlockChain blockChain;
 
+    // The template of the next block: the transactions that are valid on top of the max height
+    // block, in the order they were accepted, and the UTXO pool after them. It is rebuilt from the
+    // transaction pool when the max height block changes, and extended as transactions arrive.
+    private byte[] templateParentHash;
+    private long templatePoolModificationCount;
+    private TxHandler templateHandler;
+    private ArrayList<Transaction> templateTxs;
+    private HashSet<ByteArrayWrapper> templateTxHashes;
+    // Transactions of the pool that claim outputs of transactions that aren't in the template yet,
+    // indexed by the hash of those transactions
+    private HashMap<ByteArrayWrapper, ArrayList<Transaction>> templateWaitingTxs;
+
+    // Whether createBlock selects transactions by ancestor package fee rate instead of using the
+    // template, and the limits of the blocks it then creates
+    private boolean usePackageSelection;
+    private int maxBlockTxs;
+    private long maxBlockBytes;
+
     /** assume blockChain has the genesis block */
     public BlockHandler(BlockChain blockChain) {
         this.blockChain = blockChain;
@@ -11,37 +34,146 @@ public class BlockHandler {
 
     /**
      * add {@code block} to the block chain if it is valid.
-     * 
+     *
      * @return true if the block is valid and has been added, false otherwise
      */
     public boolean processBlock(Block block) {
         if (block == null)
             return false;
-        return blockChain.addBlock(block);
+        if (!blockChain.addBlock(block))
+            return false;
+        if (!isTemplateCurrent())
+            rebuildTemplate();
+        return true;
     }
 
-    /** create a new {@code block} over the max height {@code block} */
+    /**
+     * create a new {@code block} over the max height {@code block}. When the template is rebuilt,
+     * transactions are tried highest fee rate first, so a conflict between two transactions goes to
+     * the one paying more. Transactions processed afterwards are appended as they arrive.
+     */
     public Block createBlock(PublicKey myAddress) {
-        Block parent = blockChain.getMaxHeightBlock();
-        byte[] parentHash = parent.getHash();
-        Block current = new Block(parentHash, myAddress);
-        UTXOPool uPool = blockChain.getMaxHeightUTXOPool();
+        if (usePackageSelection)
+            return createBlockFromPackages(myAddress);
+        if (!isTemplateCurrent())
+            rebuildTemplate();
+
+        Block current = new Block(templateParentHash, myAddress);
+        for (Transaction tx : templateTxs)
+            current.addTransaction(tx);
+
+        current.finalize();
+        // The template transactions were validated on top of the parent as they were accepted
+        if (blockChain.addBlock(current, true))
+            return current;
+        else
+            return null;
+    }
+
+    /**
+     * Makes createBlock select transactions by the fee rate of their ancestor packages, so that a
+     * high-fee child can pull in its low-fee parent, with at most {@code maxBlockTxs} transactions
+     * and {@code maxBlockBytes} bytes of raw transactions per block
+     */
+    public void usePackageSelection(int maxBlockTxs, long maxBlockBytes) {
+        this.usePackageSelection = true;
+        this.maxBlockTxs = maxBlockTxs;
+        this.maxBlockBytes = maxBlockBytes;
+    }
+
+    /** process a {@code Transaction} */
+    public void processTx(Transaction tx) {
         TransactionPool txPool = blockChain.getTransactionPool();
+        long modificationCount = txPool.getModificationCount();
+        boolean wasTemplateCurrent = isTemplateCurrent() && templatePoolModificationCount == modificationCount;
+        ArrayList<Transaction> admittedTxs = blockChain.admitTransaction(tx);
+        if (!wasTemplateCurrent) {
+            return;
+        }
+
+        for (Transaction admittedTx : admittedTxs)
+            addToTemplate(admittedTx);
+        // The template only stays current if the pool changed by these additions alone, and not by
+        // evictions, which may have removed transactions of the template, or by other threads
+        if (txPool.getModificationCount() == modificationCount + admittedTxs.size())
+            templatePoolModificationCount = txPool.getModificationCount();
+    }
+
+    private Block createBlockFromPackages(PublicKey myAddress) {
+        BlockChain.Tip tip = blockChain.getTip();
+        Block current = new Block(tip.getBlock().getHash(), myAddress);
+        UTXOPool uPool = tip.getUTXOPool();
+        ArrayList<Transaction> txs = PackageSelector.select(blockChain.getTransactionPool().getTransactions(),
+                uPool, maxBlockTxs, maxBlockBytes);
         TxHandler handler = new TxHandler(uPool);
-        Transaction[] txs = txPool.getTransactions().toArray(new Transaction[0]);
-        Transaction[] rTxs = handler.handleTxs(txs);
+        Transaction[] rTxs = handler.handleTxs(txs.toArray(new Transaction[0]));
         for (int i = 0; i < rTxs.length; i++)
             current.addTransaction(rTxs[i]);
 
         current.finalize();
-        if (blockChain.addBlock(current))
+        if (blockChain.addBlock(current, true))
             return current;
         else
             return null;
     }
 
-    /** process a {@code Transaction} */
-    public void processTx(Transaction tx) {
-        blockChain.addTransaction(tx);
+    private boolean isTemplateCurrent() {
+        return templateHandler != null
+                && Arrays.equals(templateParentHash, blockChain.getMaxHeightBlock().getHash())
+                && templatePoolModificationCount == blockChain.getTransactionPool().getModificationCount();
+    }
+
+    private void rebuildTemplate() {
+        TransactionPool txPool = blockChain.getTransactionPool();
+        BlockChain.Tip tip = blockChain.getTip();
+        templateParentHash = tip.getBlock().getHash();
+        templatePoolModificationCount = txPool.getModificationCount();
+        templateHandler = new TxHandler(tip.getUTXOPool());
+        templateTxs = new ArrayList<>();
+        templateTxHashes = new HashSet<>();
+        templateWaitingTxs = new HashMap<>();
+
+        Transaction[] txs = txPool.getTransactions().toArray(new Transaction[0]);
+        for (Transaction tx : templateHandler.handleTxs(txs)) {
+            templateTxs.add(tx);
+            templateTxHashes.add(new ByteArrayWrapper(tx.getHash()));
+        }
+        for (Transaction tx : txs) {
+            if (!templateTxHashes.contains(new ByteArrayWrapper(tx.getHash())))
+                addWaitingTx(tx);
+        }
+    }
+
+    // Adds tx to the template if it is valid on top of it, and then the waiting transactions that
+    // claim its outputs
+    private void addToTemplate(Transaction tx) {
+        ArrayDeque<Transaction> txs = new ArrayDeque<>();
+        txs.add(tx);
+        while (!txs.isEmpty()) {
+            Transaction current = txs.poll();
+            ByteArrayWrapper hash = new ByteArrayWrapper(current.getHash());
+            if (templateTxHashes.contains(hash))
+                continue;
+            if (templateHandler.handleTxs(new Transaction[]{current}).length == 0) {
+                addWaitingTx(current);
+                continue;
+            }
+
+            templateTxs.add(current);
+            templateTxHashes.add(hash);
+            ArrayList<Transaction> waiting = templateWaitingTxs.remove(hash);
+            if (waiting != null)
+                txs.addAll(waiting);
+        }
+    }
+
+    private void addWaitingTx(Transaction tx) {
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in == null || in.prevTxHash == null)
+                continue;
+            if (!templateHandler.getUTXOPool().contains(new UTXO(in.prevTxHash, in.outputIndex))) {
+                templateWaitingTxs.computeIfAbsent(new ByteArrayWrapper(in.prevTxHash), k -> new ArrayList<>()).add(tx);
+            }
+        }
     }
 }
@@ -0,0 +1,160 @@
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Feeds a BlockChain with blocks that arrive in bursts and out of order, as during sync. As soon as
+ * a block is submitted, the checks that need no state of the blockchain run on a worker pool: the
+ * shape of the block and its coinbase, and the signatures of the inputs whose claimed outputs can
+ * already be found, which are verified into the signature cache shared by the TxHandlers. The
+ * blocks are then added to the blockchain one at a time, each after its parent, so the UTXO pool is
+ * still updated in order, mostly without verifying signatures anymore. A block whose parent isn't
+ * in the blockchain yet waits in the orphan pool of the blockchain, which tells the pipeline once
+ * it adds or drops the block, whether the parent came through the pipeline or not.
+ */
+public class BlockPipeline {
+
+    /** Maximum number of transactions of submitted blocks kept for finding claimed outputs */
+    public static final int MAX_RECENT_TRANSACTIONS = 100000;
+
+    private final BlockChain blockChain;
+    private final Executor executor;
+    // The futures of the submitted blocks that wait in the orphan pool of the blockchain, by block
+    // hash
+    private final ConcurrentHashMap<HashWrapper, CompletableFuture<Boolean>> orphanResults;
+    // The transactions of the blocks submitted lately, which blocks submitted after them may claim
+    // outputs of before they are added to the blockchain
+    private final LinkedHashMap<HashWrapper, Transaction> recentTxs;
+
+    /** Creates a pipeline into {@code blockChain} that checks blocks on the common fork-join pool */
+    public BlockPipeline(BlockChain blockChain) {
+        this(blockChain, ForkJoinPool.commonPool());
+    }
+
+    /** Creates a pipeline into {@code blockChain} that checks blocks on {@code executor} */
+    public BlockPipeline(BlockChain blockChain, Executor executor) {
+        this.blockChain = blockChain;
+        this.executor = executor;
+        this.orphanResults = new ConcurrentHashMap<HashWrapper, CompletableFuture<Boolean>>();
+        this.recentTxs = new LinkedHashMap<HashWrapper, Transaction>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<HashWrapper, Transaction> eldest) {
+                return size() > MAX_RECENT_TRANSACTIONS;
+            }
+        };
+        blockChain.addOrphanListener(this::orphanResolved);
+    }
+
+    /**
+     * Submits {@code block} to be added to the blockchain
+     *
+     * @return a future completed with true once the block is added, or with false if it is
+     *         invalid, if it is evicted from the orphan pool of the blockchain before its parent
+     *         arrives, or if its parent is rejected
+     */
+    public CompletableFuture<Boolean> submit(Block block) {
+        if (block == null || block.getHash() == null || block.getPrevBlockHash() == null)
+            return CompletableFuture.completedFuture(false);
+
+        synchronized (recentTxs) {
+            for (Transaction tx : block.getTransactions()) {
+                if (tx.getHash() != null)
+                    recentTxs.put(HashWrapper.wrap(tx.getHash()), tx);
+            }
+        }
+        CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+        CompletableFuture.supplyAsync(() -> check(block), executor).whenComplete((isValid, x) -> {
+            if (x != null)
+                result.completeExceptionally(x);
+            else if (!isValid)
+                result.complete(false);
+            else
+                connect(block, result);
+        });
+        return result;
+    }
+
+    /** @return the number of submitted blocks waiting for their parent */
+    public int getOrphanCount() {
+        return orphanResults.size();
+    }
+
+    // The checks of block that need no state of the blockchain
+    private boolean check(Block block) {
+        if (!BlockChain.isValidCoinBaseTransaction(block.getCoinbase()))
+            return false;
+
+        SignatureCache signatureCache = TxHandler.getSignatureCache();
+        HashMap<HashWrapper, Transaction> blockTxs = new HashMap<HashWrapper, Transaction>();
+        UTXOPool utxoPool = blockChain.getTip().getUTXOPool();
+        UTXO.Probe probe = new UTXO.Probe();
+        for (Transaction tx : block.getTransactions()) {
+            if (tx.getHash() == null)
+                continue;
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input input = tx.getInput(i);
+                if (input == null || input.prevTxHash == null || input.signature == null)
+                    continue;
+                Transaction.Output claimed = utxoPool.getTxOutput(probe.set(input.prevTxHash, input.outputIndex));
+                if (claimed == null)
+                    claimed = findOutput(blockTxs, input);
+                // The signature is verified again when the block is added if this guess is wrong
+                if (claimed != null && claimed.address != null)
+                    signatureCache.verifySignature(tx.getHash(), i, claimed.address, tx.getRawDataToSign(i), input.signature);
+            }
+            blockTxs.put(HashWrapper.wrap(tx.getHash()), tx);
+        }
+        return true;
+    }
+
+    // Finds the output claimed by input among the transactions before it in its block, or in the
+    // blocks submitted lately
+    private Transaction.Output findOutput(HashMap<HashWrapper, Transaction> blockTxs, Transaction.Input input) {
+        HashWrapper prevTxHash = HashWrapper.wrap(input.prevTxHash);
+        Transaction prevTx = blockTxs.get(prevTxHash);
+        if (prevTx == null) {
+            synchronized (recentTxs) {
+                prevTx = recentTxs.get(prevTxHash);
+            }
+        }
+        if (prevTx == null || input.outputIndex < 0)
+            return null;
+        return prevTx.getOutput(input.outputIndex);
+    }
+
+    // Adds block to the blockchain, which keeps it as an orphan if its parent isn't there yet. The
+    // future of an orphan is completed once the blockchain adds or drops it.
+    private void connect(Block block, CompletableFuture<Boolean> result) {
+        HashWrapper hash = HashWrapper.wrap(block.getHash());
+        boolean isAdded = false;
+        synchronized (blockChain) {
+            // A block already waiting for its parent isn't kept twice
+            if (!blockChain.isOrphan(block.getHash())) {
+                // Put first, as the blockchain may drop the block as soon as it keeps it
+                orphanResults.put(hash, result);
+                isAdded = blockChain.addBlock(block);
+                if (!isAdded && blockChain.isOrphan(block.getHash()))
+                    return;
+                orphanResults.remove(hash, result);
+            }
+        }
+        result.complete(isAdded);
+    }
+
+    // Called by the blockchain under its lock, so the future is completed on the executor instead
+    private void orphanResolved(Block orphan, boolean isAdded) {
+        CompletableFuture<Boolean> result = orphanResults.remove(HashWrapper.wrap(orphan.getHash()));
+        if (result == null)
+            return;
+        try {
+            executor.execute(() -> result.complete(isAdded));
+        } catch (RejectedExecutionException x) {
+            result.complete(isAdded);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Stores blocks on disk in append-only segment files, which are memory mapped, with an index from
+ * each block hash to the place of the block. A block is read back by decoding it straight from the
+ * mapped segment. Each record is the length of the encoded block, a CRC-32C checksum of it and the
+ * block. The index is rebuilt from the segments when a store is opened again, which reads them all
+ * to verify the checksums. The pages of a mapped segment may reach the disk in any order, so a
+ * crash can leave a record with its length but not all of its block; the first record that fails
+ * its checksum ends its segment, and is overwritten by the next block appended to it. A store is
+ * thread-safe, and blocks are decoded outside of its lock.
+ */
+public class BlockStore implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "blocks-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    // The length and checksum before each block
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+    private final Path directory;
+    private final int segmentSize;
+    private ArrayList<Segment> segments;
+    private int nextSegmentNumber;
+    private HashMap<HashWrapper, Location> index;
+
+    /** Opens the store in {@code directory}, creating it if needed */
+    public BlockStore(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the store in {@code directory}, creating it if needed, with new segments of
+     * {@code segmentSize} bytes, or just large enough for a larger block
+     */
+    public BlockStore(Path directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        segments = new ArrayList<Segment>();
+        index = new HashMap<HashWrapper, Location>();
+
+        Files.createDirectories(directory);
+        TreeMap<Integer, Path> files = new TreeMap<Integer, Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                files.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), file);
+            }
+        }
+        nextSegmentNumber = files.isEmpty() ? 0 : files.lastKey() + 1;
+        for (Path file : files.values()) {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+            segments.add(segment);
+            indexSegment(segments.size() - 1, segment);
+        }
+    }
+
+    /**
+     * Appends {@code block} to the store, unless it is already there
+     *
+     * @return true if the block was appended
+     */
+    public synchronized boolean put(Block block) throws IOException {
+        HashWrapper hash = new HashWrapper(block.getHash());
+        if (index.containsKey(hash))
+            return false;
+
+        int length = BlockCodec.getEncodedSize(block);
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || (long) segment.end + HEADER_SIZE + length > segment.buffer.capacity()) {
+            segment = createSegment(Math.max(segmentSize, HEADER_SIZE + length));
+        }
+
+        int offset = segment.end + HEADER_SIZE;
+        ByteBuffer record = segment.buffer.slice(offset, length);
+        BlockCodec.encode(block, record.duplicate());
+        segment.buffer.putInt(segment.end + Integer.BYTES, checksum(record));
+        segment.buffer.putInt(segment.end, length);
+        segment.end = offset + length;
+        index.put(hash, new Location(segments.size() - 1, offset, length));
+        return true;
+    }
+
+    /** @return the block with hash {@code hash}, or null if it isn't in the store */
+    public Block getBlock(byte[] hash) {
+        ByteBuffer record;
+        synchronized (this) {
+            Location location = index.get(HashWrapper.wrap(hash));
+            if (location == null)
+                return null;
+            // Records are never written again once appended
+            record = segments.get(location.segment).buffer.slice(location.offset, location.length);
+        }
+        // The store only holds blocks this node encoded, so their hashes need not be computed again
+        return BlockCodec.decode(record, true);
+    }
+
+    public synchronized boolean contains(byte[] hash) {
+        return index.containsKey(HashWrapper.wrap(hash));
+    }
+
+    /** @return the number of blocks in the store */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /** Writes the appended blocks through to the segment files */
+    public synchronized void flush() {
+        for (Segment segment : segments)
+            segment.buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        for (Segment segment : segments)
+            segment.channel.close();
+    }
+
+    // Adds the blocks of segment to the index and finds where its records end: at the first record
+    // that is empty, cut short or fails its checksum
+    private void indexSegment(int segmentNumber, Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            int offset = position + HEADER_SIZE;
+            if (length <= 0 || (long) offset + length > buffer.capacity())
+                break;
+            ByteBuffer record = buffer.slice(offset, length);
+            if (checksum(record) != buffer.getInt(position + Integer.BYTES))
+                break;
+            byte[] hash = BlockCodec.decodeHash(record);
+            if (hash != null)
+                index.putIfAbsent(new HashWrapper(hash), new Location(segmentNumber, offset, length));
+            position = offset + length;
+        }
+        segment.end = position;
+    }
+
+    private static int checksum(ByteBuffer record) {
+        CRC32C crc = new CRC32C();
+        crc.update(record.duplicate());
+        return (int) crc.getValue();
+    }
+
+    private Segment createSegment(int size) throws IOException {
+        String name = String.format("%s%05d%s", SEGMENT_PREFIX, nextSegmentNumber++, SEGMENT_SUFFIX);
+        FileChannel channel = FileChannel.open(directory.resolve(name), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        segments.add(segment);
+        return segment;
+    }
+
+    private static class Segment {
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        // Where the next record goes
+        private int end;
+
+        private Segment(FileChannel channel, MappedByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Location {
+        private final int segment;
+        private final int offset;
+        private final int length;
+
+        private Location(int segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The changes a block makes to the UTXO pool of its parent: the outputs it spends and the ones it
+ * creates. They are enough to apply the block to the pool of its parent again, or to roll it back
+ * from its own pool, without keeping either pool around.
+ */
+public class BlockUndo {
+
+    // The outputs of the parent pool that the block removes, including the ones it replaces with a
+    // new output under the same UTXO
+    private final LinkedHashMap<UTXO, Transaction.Output> spent;
+    // The outputs that the block adds and that are still unspent at its end
+    private final LinkedHashMap<UTXO, Transaction.Output> created;
+
+    private BlockUndo() {
+        spent = new LinkedHashMap<UTXO, Transaction.Output>();
+        created = new LinkedHashMap<UTXO, Transaction.Output>();
+    }
+
+    /**
+     * Applies the transactions of {@code block}, which must be valid, and then its coinbase to
+     * {@code utxoPool}, the pool of its parent, as TxHandler would. A block may list a transaction
+     * before the one whose output it claims, so they are applied in the order TxHandler.handleTxs
+     * accepts them in, given by TxScheduler, rather than in the order they are listed.
+     *
+     * @return the changes made to {@code utxoPool}
+     */
+    public static BlockUndo apply(Block block, UTXOPool utxoPool) {
+        BlockUndo undo = new BlockUndo();
+        TxScheduler.accept(block.getTransactions().toArray(new Transaction[0]), tx -> {
+            if (findMissingOutput(tx, utxoPool) != null) {
+                return false;
+            }
+            for (Transaction.Input in : tx.getInputs()) {
+                undo.remove(new UTXO(in.prevTxHash, in.outputIndex), utxoPool);
+            }
+            for (int j = 0; j < tx.numOutputs(); j++) {
+                undo.add(new UTXO(tx.getHash(), j), tx.getOutput(j), utxoPool);
+            }
+            return true;
+        });
+        undo.add(new UTXO(block.getCoinbase().getHash(), 0), block.getCoinbase().getOutput(0), utxoPool);
+        return undo;
+    }
+
+    /** Applies the block again to {@code utxoPool}, the pool of its parent */
+    public void redo(UTXOPool utxoPool) {
+        for (UTXO utxo : spent.keySet()) {
+            utxoPool.removeUTXO(utxo);
+        }
+        for (Map.Entry<UTXO, Transaction.Output> output : created.entrySet()) {
+            utxoPool.addUTXO(output.getKey(), output.getValue());
+        }
+    }
+
+    /** Rolls the block back from {@code utxoPool}, the pool of the block */
+    public void undo(UTXOPool utxoPool) {
+        for (UTXO utxo : created.keySet()) {
+            utxoPool.removeUTXO(utxo);
+        }
+        for (Map.Entry<UTXO, Transaction.Output> output : spent.entrySet()) {
+            utxoPool.addUTXO(output.getKey(), output.getValue());
+        }
+    }
+
+    void write(ChainSnapshot.Writer writer) throws IOException {
+        writer.writeOutputs(spent);
+        writer.writeOutputs(created);
+    }
+
+    static BlockUndo read(ChainSnapshot.Reader reader) throws IOException {
+        BlockUndo undo = new BlockUndo();
+        reader.readOutputs(undo.spent);
+        reader.readOutputs(undo.created);
+        return undo;
+    }
+
+    // Returns an output claimed by tx that isn't in utxoPool, or null if there is none
+    private static UTXO findMissingOutput(Transaction tx, UTXOPool utxoPool) {
+        for (Transaction.Input in : tx.getInputs()) {
+            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+            if (!utxoPool.contains(utxo)) {
+                return utxo;
+            }
+        }
+        return null;
+    }
+
+    private void remove(UTXO utxo, UTXOPool utxoPool) {
+        // An output created earlier in the block is not in the parent pool
+        if (created.containsKey(utxo)) {
+            created.remove(utxo);
+        } else if (utxoPool.contains(utxo)) {
+            spent.putIfAbsent(utxo, utxoPool.getTxOutput(utxo));
+        }
+        utxoPool.removeUTXO(utxo);
+    }
+
+    private void add(UTXO utxo, Transaction.Output txOut, UTXOPool utxoPool) {
+        if (!created.containsKey(utxo) && utxoPool.contains(utxo)) {
+            spent.putIfAbsent(utxo, utxoPool.getTxOutput(utxo));
+        }
+        created.put(utxo, txOut);
+        utxoPool.addUTXO(utxo, txOut);
+    }
+}
@@ -0,0 +1,113 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.ArrayList;
+
+/**
+ * A read-only view of a block encoded by BlockCodec. The view only finds where the key table and
+ * the transactions are, and reads the fields in place from the underlying buffer when asked, so a
+ * block can be inspected, or a single transaction taken out of it, without decoding it all.
+ */
+public class BlockView {
+
+    private final boolean useMerkleRoot;
+    private final ByteBuffer hash;
+    private final ByteBuffer prevBlockHash;
+    private final ByteBuffer[] keys;
+    // The coinbase first, then the transactions, each without its length prefix
+    private final ByteBuffer[] txs;
+    private final int encodedSize;
+
+    /**
+     * Creates a view of the block encoded at the position of {@code buffer}, which is left as is
+     *
+     * @throws IllegalArgumentException if the block was encoded in an unknown format or is malformed
+     * @throws java.nio.BufferUnderflowException if the block is truncated
+     */
+    public BlockView(ByteBuffer buffer) {
+        ByteBuffer cursor = buffer.duplicate();
+        if (cursor.get() != BlockCodec.VERSION)
+            throw new IllegalArgumentException("Unknown block format");
+        useMerkleRoot = (cursor.get() & BlockCodec.MERKLE_ROOT_FLAG) != 0;
+        hash = BlockCodec.getBytesSlice(cursor);
+        prevBlockHash = BlockCodec.getBytesSlice(cursor);
+        keys = TransactionView.readKeys(cursor);
+        // Each transaction takes at least its length prefix, and there is at least the coinbase
+        txs = new ByteBuffer[BlockCodec.getCount(cursor, 1)];
+        if (txs.length == 0)
+            throw new IllegalArgumentException("Block without a coinbase");
+        for (int i = 0; i < txs.length; i++)
+            txs[i] = BlockCodec.getSlice(cursor, BlockCodec.getVarInt(cursor));
+        encodedSize = cursor.position() - buffer.position();
+    }
+
+    public ByteBuffer getHash() {
+        return hash == null ? null : hash.duplicate();
+    }
+
+    /** @return the hash of the previous block, or null for a genesis block */
+    public ByteBuffer getPrevBlockHash() {
+        return prevBlockHash == null ? null : prevBlockHash.duplicate();
+    }
+
+    public boolean usesMerkleRoot() {
+        return useMerkleRoot;
+    }
+
+    /** @return the number of distinct keys of the outputs of the block */
+    public int numKeys() {
+        return keys.length;
+    }
+
+    /** @return the X.509 encoded key numbered {@code index} in the key table */
+    public ByteBuffer getKey(int index) {
+        return keys[index].duplicate();
+    }
+
+    public TransactionView getCoinbase() {
+        return new TransactionView(txs[0], keys);
+    }
+
+    /** @return the number of transactions of the block, not counting the coinbase */
+    public int numTransactions() {
+        return txs.length - 1;
+    }
+
+    public TransactionView getTransaction(int index) {
+        return new TransactionView(txs[index + 1], keys);
+    }
+
+    /** @return the number of bytes the block takes in the buffer */
+    public int getEncodedSize() {
+        return encodedSize;
+    }
+
+    /**
+     * @return the decoded block, with the hashes of the block and its transactions computed from
+     *         their fields rather than taken from the encoding, or null if one of its transactions
+     *         is malformed or one of its keys is invalid
+     */
+    public Block toBlock() {
+        return toBlock(false);
+    }
+
+    /** Like {@link #toBlock()}, but keeps the encoded hashes if {@code trustHashes} */
+    Block toBlock(boolean trustHashes) {
+        PublicKey[] decodedKeys = BlockCodec.decodeKeys(keys);
+        if (decodedKeys == null)
+            return null;
+        Transaction coinbase;
+        ArrayList<Transaction> decodedTxs = new ArrayList<Transaction>(numTransactions());
+        try {
+            coinbase = getCoinbase().toTransaction(decodedKeys, trustHashes);
+            for (int i = 0; i < numTransactions(); i++)
+                decodedTxs.add(getTransaction(i).toTransaction(decodedKeys, trustHashes));
+        } catch (BufferUnderflowException | IllegalArgumentException x) {
+            return null;
+        }
+        Block block = new Block(TransactionView.copy(hash), TransactionView.copy(prevBlockHash), coinbase, decodedTxs, useMerkleRoot);
+        if (!trustHashes)
+            block.finalize();
+        return block;
+    }
+}
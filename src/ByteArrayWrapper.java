@@ -5,18 +5,21 @@ import java.util.Arrays;
 public class ByteArrayWrapper {
 
     private byte[] contents;
+    // Computed once, as wrappers are mostly looked up in hash maps
+    private int hash;
 
     public ByteArrayWrapper(byte[] b) {
         contents = new byte[b.length];
         for (int i = 0; i < contents.length; i++)
             contents[i] = b[i];
+        hash = Arrays.hashCode(contents);
     }
 
     public boolean equals(Object other) {
         if (other == null) {
             return false;
         }
-        if (getClass() != other.getClass()) {
+        if (!(other instanceof ByteArrayWrapper)) {
             return false;
         }
 
@@ -42,6 +45,6 @@ public class ByteArrayWrapper {
     }
 
     public int hashCode() {
-        return Arrays.hashCode(contents);
+        return hash;
     }
 }
@@ -0,0 +1,283 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The binary format of the snapshots a BlockChain is written to and restarted from. A snapshot is
+ * a sequence of big-endian values, starting with a magic number and a version. Blocks and
+ * transactions are encoded as by BlockCodec, and each public key is written in full only the first
+ * time it appears, after which it is referred to by its number.
+ */
+public class ChainSnapshot {
+
+    public static final int MAGIC = 0x55545853;
+    public static final byte VERSION = 2;
+
+    // A key number meaning that the output has no address
+    private static final int NO_KEY = -1;
+
+    /** Writes a snapshot to a file */
+    static class Writer implements Closeable {
+        private final FileChannel channel;
+        private final DataOutputStream out;
+        private final KeyRegistry keyRegistry;
+        // The numbers of the keys written so far, by their id in keyRegistry
+        private final HashMap<Integer, Integer> keys;
+
+        // Writes to file, numbering the keys of the outputs with keyRegistry, the blockchain's
+        Writer(Path file, KeyRegistry keyRegistry) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+            out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            this.keyRegistry = keyRegistry;
+            keys = new HashMap<Integer, Integer>();
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+        }
+
+        void writeInt(int value) throws IOException {
+            out.writeInt(value);
+        }
+
+        void writeDouble(double value) throws IOException {
+            out.writeDouble(value);
+        }
+
+        void writeBoolean(boolean value) throws IOException {
+            out.writeBoolean(value);
+        }
+
+        void writeBytes(byte[] bytes) throws IOException {
+            if (bytes == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        void writeUTXO(UTXO utxo) throws IOException {
+            writeBytes(utxo.getTxHash());
+            out.writeInt(utxo.getIndex());
+        }
+
+        void writeOutput(Transaction.Output txOut) throws IOException {
+            out.writeBoolean(txOut != null);
+            if (txOut == null)
+                return;
+            out.writeDouble(txOut.value);
+            int keyId = txOut.getKeyId(keyRegistry);
+            if (keyId < 0) {
+                out.writeInt(NO_KEY);
+                return;
+            }
+            Integer key = keys.get(keyId);
+            if (key != null) {
+                out.writeInt(key);
+            } else {
+                out.writeInt(keys.size());
+                writeBytes(keyRegistry.getEncoded(keyId));
+                keys.put(keyId, keys.size());
+            }
+        }
+
+        void writeUTXOPool(UTXOPool utxoPool) throws IOException {
+            ArrayList<UTXO> utxos = utxoPool.getAllUTXO();
+            out.writeInt(utxos.size());
+            for (UTXO utxo : utxos) {
+                writeUTXO(utxo);
+                writeOutput(utxoPool.getTxOutput(utxo));
+            }
+        }
+
+        /** Writes the changes that turn {@code from} into {@code to} */
+        void writeUTXOPoolChanges(UTXOPool from, UTXOPool to) throws IOException {
+            ArrayList<UTXO> changed = new ArrayList<UTXO>();
+            for (UTXO utxo : to.getAllUTXO()) {
+                if (!from.contains(utxo) || !isSameOutput(from.getTxOutput(utxo), to.getTxOutput(utxo)))
+                    changed.add(utxo);
+            }
+            ArrayList<UTXO> removed = new ArrayList<UTXO>();
+            for (UTXO utxo : from.getAllUTXO()) {
+                if (!to.contains(utxo))
+                    removed.add(utxo);
+            }
+
+            out.writeInt(changed.size());
+            for (UTXO utxo : changed) {
+                writeUTXO(utxo);
+                writeOutput(to.getTxOutput(utxo));
+            }
+            out.writeInt(removed.size());
+            for (UTXO utxo : removed)
+                writeUTXO(utxo);
+        }
+
+        // Packed pools create a new output on each lookup, so outputs are compared by content
+        private static boolean isSameOutput(Transaction.Output a, Transaction.Output b) {
+            if (a == null || b == null)
+                return a == b;
+            return a.equals(b);
+        }
+
+        /** Writes {@code changes}, a map from UTXO to output such as the ones of BlockUndo */
+        void writeOutputs(Map<UTXO, Transaction.Output> changes) throws IOException {
+            out.writeInt(changes.size());
+            for (Map.Entry<UTXO, Transaction.Output> change : changes.entrySet()) {
+                writeUTXO(change.getKey());
+                writeOutput(change.getValue());
+            }
+        }
+
+        void writeBlock(Block block) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(BlockCodec.getEncodedSize(block));
+            BlockCodec.encode(block, buffer);
+            writeBytes(buffer.array());
+        }
+
+        void writeTransaction(Transaction tx) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(BlockCodec.getEncodedSize(tx));
+            BlockCodec.encode(tx, buffer);
+            writeBytes(buffer.array());
+        }
+
+        // Forces the snapshot to the disk before it is closed, so that it can be renamed over the
+        // last one without a crash leaving a file that is empty or cut short in its place
+        @Override
+        public void close() throws IOException {
+            try {
+                out.flush();
+                channel.force(true);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /** Reads a snapshot from a memory mapped file */
+    static class Reader {
+        private final ByteBuffer buffer;
+        private final KeyRegistry keyRegistry;
+        private final ArrayList<PublicKey> keys;
+        // Outputs are inner objects of a transaction, which this one stands for
+        private final Transaction outputs;
+
+        // Reads file, registering the keys of the outputs in keyRegistry, the blockchain's
+        Reader(Path file, KeyRegistry keyRegistry) throws IOException {
+            this.keyRegistry = keyRegistry;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            keys = new ArrayList<PublicKey>();
+            outputs = new Transaction();
+            if (buffer.remaining() < Integer.BYTES + 1 || buffer.getInt() != MAGIC || buffer.get() != VERSION)
+                throw new IOException("Not a blockchain snapshot: " + file);
+        }
+
+        int readInt() {
+            return buffer.getInt();
+        }
+
+        double readDouble() {
+            return buffer.getDouble();
+        }
+
+        boolean readBoolean() {
+            return buffer.get() != 0;
+        }
+
+        byte[] readBytes() {
+            int length = buffer.getInt();
+            if (length < 0)
+                return null;
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return bytes;
+        }
+
+        UTXO readUTXO() {
+            byte[] txHash = readBytes();
+            return new UTXO(txHash, buffer.getInt());
+        }
+
+        Transaction.Output readOutput() throws IOException {
+            if (!readBoolean())
+                return null;
+            double value = buffer.getDouble();
+            int key = buffer.getInt();
+            if (key == NO_KEY)
+                return outputs.new Output(value, null);
+            if (key == keys.size()) {
+                try {
+                    keys.add(keyRegistry.getKey(keyRegistry.getId(readBytes())));
+                } catch (NoSuchAlgorithmException | InvalidKeySpecException x) {
+                    throw new IOException(x);
+                }
+            }
+            return outputs.new Output(value, keys.get(key));
+        }
+
+        UTXOPool readUTXOPool() throws IOException {
+            UTXOPool utxoPool = new UTXOPool(keyRegistry);
+            int size = buffer.getInt();
+            for (int i = 0; i < size; i++) {
+                UTXO utxo = readUTXO();
+                utxoPool.addUTXO(utxo, readOutput());
+            }
+            return utxoPool;
+        }
+
+        /** @return a copy of {@code from} with the changes written by writeUTXOPoolChanges */
+        UTXOPool readUTXOPoolChanges(UTXOPool from) throws IOException {
+            UTXOPool utxoPool = new UTXOPool(from);
+            int changed = buffer.getInt();
+            for (int i = 0; i < changed; i++) {
+                UTXO utxo = readUTXO();
+                utxoPool.addUTXO(utxo, readOutput());
+            }
+            int removed = buffer.getInt();
+            for (int i = 0; i < removed; i++)
+                utxoPool.removeUTXO(readUTXO());
+            return utxoPool;
+        }
+
+        /** Reads the map written by writeOutputs into {@code changes} */
+        void readOutputs(Map<UTXO, Transaction.Output> changes) throws IOException {
+            int size = buffer.getInt();
+            for (int i = 0; i < size; i++) {
+                UTXO utxo = readUTXO();
+                changes.put(utxo, readOutput());
+            }
+        }
+
+        Block readBlock() throws IOException {
+            int length = buffer.getInt();
+            Block block = BlockCodec.decode(buffer.slice(buffer.position(), length), true);
+            buffer.position(buffer.position() + length);
+            if (block == null)
+                throw new IOException("Invalid block in snapshot");
+            return block;
+        }
+
+        Transaction readTransaction() throws IOException {
+            int length = buffer.getInt();
+            Transaction tx = BlockCodec.decodeTransaction(buffer.slice(buffer.position(), length), true);
+            buffer.position(buffer.position() + length);
+            if (tx == null)
+                throw new IOException("Invalid transaction in snapshot");
+            return tx;
+        }
+    }
+}
@@ -4,9 +4,22 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.util.stream.IntStream;
 
 public class Crypto {
 
+    /** The outcome of verifying a digital signature */
+    public enum Result {
+        VALID,
+        INVALID,
+        /** the key or the signature could not be used, or the algorithm is not available */
+        ERROR
+    }
+
+    // Signature engines are not thread-safe, so each thread keeps its own instead of looking one up
+    // from the providers for every verification
+    private static final ThreadLocal<Signature> verifiers = ThreadLocal.withInitial(Crypto::newVerifier);
+
     /**
      * @return true if {@code signature} is a valid digital signature of {@code message} under the
      *         key {@code pubKey}. Internally, this uses RSA signature, but you do not
@@ -14,24 +27,45 @@ public class Crypto {
      *         algorithm
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+        return verify(pubKey, message, signature) == Result.VALID;
+    }
+
+    /**
+     * @return whether {@code signature} is a valid digital signature of {@code message} under the
+     *         key {@code pubKey}, or {@code ERROR} if the verification could not be done
+     */
+    public static Result verify(PublicKey pubKey, byte[] message, byte[] signature) {
+        Signature sig = verifiers.get();
+        if (sig == null) {
+            return Result.ERROR;
         }
         try {
             sig.initVerify(pubKey);
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
-        }
-        try {
             sig.update(message);
-            return sig.verify(signature);
-        } catch (SignatureException e) {
-            e.printStackTrace();
+            return sig.verify(signature) ? Result.VALID : Result.INVALID;
+        } catch (InvalidKeyException | SignatureException e) {
+            return Result.ERROR;
         }
-        return false;
+    }
 
+    /**
+     * Verifies {@code signatures[i]} as a signature of {@code messages[i]} under the key
+     * {@code pubKeys[i]} for every i, spreading the verifications over the common fork-join pool
+     *
+     * @return the result of each verification, in the same order
+     */
+    public static Result[] verifyAll(PublicKey[] pubKeys, byte[][] messages, byte[][] signatures) {
+        Result[] results = new Result[pubKeys.length];
+        IntStream.range(0, results.length).parallel()
+                .forEach(i -> results[i] = verify(pubKeys[i], messages[i], signatures[i]));
+        return results;
+    }
+
+    private static Signature newVerifier() {
+        try {
+            return Signature.getInstance("SHA256withRSA");
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
     }
 }
@@ -0,0 +1,71 @@
+
+import java.util.Arrays;
+
+/**
+ * A wrapper for a SHA-256 hash, such as a transaction or block hash, with hashCode and equals
+ * implemented. Unlike ByteArrayWrapper, which reads all of an array, the hash code is made of the
+ * first 8 bytes only, as the bytes of a digest are already uniformly distributed. Arbitrary arrays,
+ * such as encoded keys, which share long common prefixes, must be wrapped in a ByteArrayWrapper.
+ */
+public class HashWrapper {
+
+    private byte[] hash;
+    // Computed once, as wrappers are mostly probed for in hash maps
+    private int hashCode;
+
+    public HashWrapper(byte[] hash) {
+        setHash(Arrays.copyOf(hash, hash.length));
+    }
+
+    private HashWrapper() {
+    }
+
+    /**
+     * @return a wrapper of {@code hash} that shares it instead of copying it. {@code hash} must
+     *         not be modified afterwards.
+     */
+    public static HashWrapper wrap(byte[] hash) {
+        HashWrapper wrapper = new HashWrapper();
+        wrapper.setHash(hash);
+        return wrapper;
+    }
+
+    /** @return a hash code of the digest {@code hash} made of its first 8 bytes, or of all of them if it is shorter */
+    static int hashOf(byte[] hash) {
+        if (hash == null)
+            return 0;
+        if (hash.length < Long.BYTES)
+            return Arrays.hashCode(hash);
+        long prefix = 0;
+        for (int i = 0; i < Long.BYTES; i++)
+            prefix = prefix << 8 | (hash[i] & 0xFF);
+        return Long.hashCode(prefix);
+    }
+
+    public boolean equals(Object other) {
+        if (!(other instanceof HashWrapper))
+            return false;
+        return Arrays.equals(hash, ((HashWrapper) other).hash);
+    }
+
+    public int hashCode() {
+        return hashCode;
+    }
+
+    /**
+     * A wrapper that can be pointed at another hash, to look hashes up in hash maps without
+     * allocating. A probe must never be stored in a map, and is not thread-safe.
+     */
+    static final class Probe extends HashWrapper {
+        /** Points this probe at {@code hash}, without copying it */
+        Probe set(byte[] hash) {
+            ((HashWrapper) this).setHash(hash);
+            return this;
+        }
+    }
+
+    private void setHash(byte[] hash) {
+        this.hash = hash;
+        hashCode = hashOf(hash);
+    }
+}
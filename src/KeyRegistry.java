@@ -0,0 +1,157 @@
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Numbers public keys: each distinct key gets the next id the first time it is registered, and
+ * keeps it. Structures holding many outputs can then store an int id instead of a reference to a
+ * key, and equal keys read back from them are the same object. The registry also keeps the forms
+ * of each key that are needed over and over, its X.509 encoding, its raw bytes as they appear in a
+ * raw transaction, its hash code and a fingerprint, so they are computed once per key rather than
+ * once per use.
+ * <p>
+ * A registry belongs to a blockchain, shared by its packed UTXO pools and its snapshots, and is
+ * collected with it. Ids are never reused, so keys are never evicted while the blockchain lives.
+ * Only the keys of outputs connected to the blockchain are registered, when they are stored in a
+ * packed UTXO pool or a snapshot, so peers can't grow the registry by sending transactions or
+ * blocks to fresh keys.
+ */
+public class KeyRegistry {
+
+    private HashMap<PublicKey, Integer> ids;
+    private HashMap<ByteArrayWrapper, Integer> encodedIds;
+    // Read without locking: a new entry is written into the array before its id is handed out, and
+    // a full array is replaced by a larger copy
+    private volatile Entry[] entries;
+    private int size;
+    private KeyFactory keyFactory;
+
+    public KeyRegistry() {
+        ids = new HashMap<PublicKey, Integer>();
+        encodedIds = new HashMap<ByteArrayWrapper, Integer>();
+        entries = new Entry[16];
+    }
+
+    /** @return the id of {@code key}, registering it if it is new */
+    public synchronized int getId(PublicKey key) {
+        Integer id = ids.get(key);
+        if (id != null)
+            return id;
+        return register(key, key.getEncoded());
+    }
+
+    /**
+     * @return the id of the key with X.509 encoding {@code encoded}, registering it if it is new.
+     *         A known key is looked up without being decoded again.
+     */
+    public synchronized int getId(byte[] encoded) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        Integer id = encodedIds.get(new ByteArrayWrapper(encoded));
+        if (id != null)
+            return id;
+        PublicKey key = decode(encoded);
+        id = ids.get(key);
+        if (id != null)
+            return id;
+        return register(key, encoded.clone());
+    }
+
+    /** @return the registered key equal to {@code key}, registering {@code key} if there is none */
+    public PublicKey intern(PublicKey key) {
+        return getKey(getId(key));
+    }
+
+    /** @return the key with id {@code id} */
+    public PublicKey getKey(int id) {
+        return entries[id].key;
+    }
+
+    /** @return the X.509 encoding of the key with id {@code id}, which must not be modified */
+    public byte[] getEncoded(int id) {
+        return entries[id].encoded;
+    }
+
+    /**
+     * @return the public exponent followed by the modulus of the key with id {@code id}, as in a
+     *         raw transaction, which must not be modified
+     */
+    public byte[] getRawBytes(int id) {
+        return entries[id].rawBytes;
+    }
+
+    /** @return the hash code of the key with id {@code id} */
+    public int getHashCode(int id) {
+        return entries[id].hashCode;
+    }
+
+    /** @return the first 8 bytes of the SHA-256 hash of the encoding of the key with id {@code id} */
+    public long getFingerprint(int id) {
+        return entries[id].fingerprint;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /** @return the public exponent followed by the modulus of {@code key}, as in a raw transaction */
+    static byte[] getRawBytes(PublicKey key) {
+        byte[] exponent = ((RSAPublicKey) key).getPublicExponent().toByteArray();
+        byte[] modulus = ((RSAPublicKey) key).getModulus().toByteArray();
+        byte[] rawBytes = Arrays.copyOf(exponent, exponent.length + modulus.length);
+        System.arraycopy(modulus, 0, rawBytes, exponent.length, modulus.length);
+        return rawBytes;
+    }
+
+    private PublicKey decode(byte[] encoded) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        if (keyFactory == null)
+            keyFactory = KeyFactory.getInstance("RSA");
+        return keyFactory.generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    private int register(PublicKey key, byte[] encoded) {
+        Entry entry = new Entry(key, encoded);
+        Entry[] current = entries;
+        if (size == current.length)
+            current = Arrays.copyOf(current, 2 * size);
+        current[size] = entry;
+        entries = current;
+        ids.put(key, size);
+        encodedIds.put(new ByteArrayWrapper(encoded), size);
+        return size++;
+    }
+
+    // A key with the forms of it that are computed once
+    private static class Entry {
+        private final PublicKey key;
+        private final byte[] encoded;
+        private final byte[] rawBytes;
+        private final int hashCode;
+        private final long fingerprint;
+
+        private Entry(PublicKey key, byte[] encoded) {
+            this.key = key;
+            this.encoded = encoded;
+            this.rawBytes = getRawBytes(key);
+            this.hashCode = key.hashCode();
+            this.fingerprint = fingerprint(encoded);
+        }
+
+        private static long fingerprint(byte[] encoded) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(encoded);
+                long fingerprint = 0;
+                for (int i = 0; i < Long.BYTES; i++)
+                    fingerprint = fingerprint << 8 | (digest[i] & 0xFF);
+                return fingerprint;
+            } catch (NoSuchAlgorithmException x) {
+                x.printStackTrace(System.err);
+                return Arrays.hashCode(encoded);
+            }
+        }
+    }
+}
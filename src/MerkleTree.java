@@ -0,0 +1,124 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A Merkle tree over a list of transactions that grows as transactions are appended. As in Bitcoin,
+ * the last node of a level with an odd number of nodes is paired with itself, so repeating the last
+ * leaves can give another list the same root: [a, b, c] and [a, b, c, c] do. Whatever commits to a
+ * root must then commit to the number of leaves too. Leaves and inner nodes are hashed with
+ * different prefixes, so an inner node can't be passed off as a transaction.
+ */
+public class MerkleTree {
+
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+
+    /** The hashes of each level of the tree, starting with the leaves */
+    private ArrayList<ArrayList<byte[]>> levels;
+
+    /** Creates an empty tree */
+    public MerkleTree() {
+        levels = new ArrayList<ArrayList<byte[]>>();
+        levels.add(new ArrayList<byte[]>());
+    }
+
+    /** Appends {@code tx} as the last leaf, rehashing only the nodes on its path to the root */
+    public void add(Transaction tx) {
+        ArrayList<byte[]> leaves = levels.get(0);
+        leaves.add(hashLeaf(tx));
+
+        int index = leaves.size() - 1;
+        for (int level = 0; levels.get(level).size() > 1; level++) {
+            ArrayList<byte[]> nodes = levels.get(level);
+            int parentIndex = index / 2;
+            byte[] left = nodes.get(2 * parentIndex);
+            byte[] right = 2 * parentIndex + 1 < nodes.size() ? nodes.get(2 * parentIndex + 1) : left;
+            byte[] parent = hashNode(left, right);
+
+            if (level + 1 == levels.size())
+                levels.add(new ArrayList<byte[]>());
+            ArrayList<byte[]> parents = levels.get(level + 1);
+            if (parentIndex < parents.size())
+                parents.set(parentIndex, parent);
+            else
+                parents.add(parent);
+            index = parentIndex;
+        }
+    }
+
+    /** @return the number of leaves */
+    public int size() {
+        return levels.get(0).size();
+    }
+
+    /** @return the root of the tree, or null if it is empty */
+    public byte[] getRoot() {
+        ArrayList<byte[]> top = levels.get(levels.size() - 1);
+        return top.isEmpty() ? null : top.get(0);
+    }
+
+    /**
+     * @return the sibling of each node on the path from leaf {@code index} to the root, starting
+     *         with the sibling of the leaf, or null if there is no such leaf
+     */
+    public byte[][] getProof(int index) {
+        if (index < 0 || index >= size())
+            return null;
+        byte[][] proof = new byte[levels.size() - 1][];
+        for (int level = 0; level < proof.length; level++) {
+            ArrayList<byte[]> nodes = levels.get(level);
+            int sibling = index % 2 == 0 ? index + 1 : index - 1;
+            proof[level] = sibling < nodes.size() ? nodes.get(sibling) : nodes.get(index);
+            index /= 2;
+        }
+        return proof;
+    }
+
+    /**
+     * @return true if {@code proof} shows that {@code tx} is the leaf at {@code index} of the tree
+     *         of {@code size} leaves whose root is {@code root}. The proof must have one sibling per
+     *         level of such a tree, and the last node of a level with an odd number of nodes must
+     *         be paired with itself, so no leaf past the end of the tree can be proven.
+     */
+    public static boolean verifyProof(Transaction tx, int index, int size, byte[][] proof, byte[] root) {
+        if (tx == null || proof == null || root == null || index < 0 || index >= size)
+            return false;
+        byte[] node = hashLeaf(tx);
+        // The number of nodes of the current level
+        int count = size;
+        for (byte[] sibling : proof) {
+            if (sibling == null || count == 1)
+                return false;
+            if (index == count - 1 && count % 2 == 1 && !Arrays.equals(sibling, node))
+                return false;
+            node = index % 2 == 0 ? hashNode(node, sibling) : hashNode(sibling, node);
+            index /= 2;
+            count = (count + 1) / 2;
+        }
+        return count == 1 && Arrays.equals(node, root);
+    }
+
+    public static byte[] hashLeaf(Transaction tx) {
+        return hash(LEAF_PREFIX, tx.getRawTx(), null);
+    }
+
+    private static byte[] hashNode(byte[] left, byte[] right) {
+        return hash(NODE_PREFIX, left, right);
+    }
+
+    private static byte[] hash(byte prefix, byte[] first, byte[] second) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(prefix);
+            md.update(first);
+            if (second != null)
+                md.update(second);
+            return md.digest();
+        } catch (NoSuchAlgorithmException x) {
+            x.printStackTrace(System.err);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The blocks whose parent is unknown yet, indexed by the hash of that parent. Orphans older than
+ * the maximum age are evicted, and once the pool is full, the oldest orphans are evicted first. A
+ * pool is not thread-safe.
+ */
+public class OrphanBlockPool {
+
+    public static final int DEFAULT_MAX_ORPHANS = 100;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 10 * 60 * 1000;
+
+    private final int maxOrphans;
+    private final long maxAgeMillis;
+    // In the order the orphans were added, so the oldest comes first
+    private LinkedHashMap<HashWrapper, Orphan> H;
+    private HashMap<HashWrapper, ArrayList<Block>> byParent;
+    // Reused for the lookups that don't keep the hash they look for
+    private final HashWrapper.Probe probe = new HashWrapper.Probe();
+
+    public OrphanBlockPool() {
+        this(DEFAULT_MAX_ORPHANS);
+    }
+
+    public OrphanBlockPool(int maxOrphans) {
+        this(maxOrphans, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    public OrphanBlockPool(int maxOrphans, long maxAgeMillis) {
+        this.maxOrphans = maxOrphans;
+        this.maxAgeMillis = maxAgeMillis;
+        H = new LinkedHashMap<HashWrapper, Orphan>();
+        byParent = new HashMap<HashWrapper, ArrayList<Block>>();
+    }
+
+    /**
+     * Adds {@code block}, which waits for the block with hash {@code block.getPrevBlockHash()},
+     * unless it is already in the pool
+     *
+     * @return the orphans evicted for being too old or to make room, oldest first, which is
+     *         {@code block} itself if the pool can't hold any
+     */
+    public ArrayList<Block> addBlock(Block block) {
+        ArrayList<Block> evicted = new ArrayList<Block>();
+        if (H.containsKey(probe.set(block.getHash())))
+            return evicted;
+
+        // The hashes of a finalized block are never modified, so the keys can share them
+        long now = System.currentTimeMillis();
+        H.put(HashWrapper.wrap(block.getHash()), new Orphan(block, now));
+        byParent.computeIfAbsent(HashWrapper.wrap(block.getPrevBlockHash()), k -> new ArrayList<Block>())
+                .add(block);
+
+        Iterator<Orphan> oldest = H.values().iterator();
+        while (oldest.hasNext()) {
+            Orphan orphan = oldest.next();
+            if (H.size() <= Math.max(maxOrphans, 0) && now - orphan.addedAt <= maxAgeMillis)
+                break;
+            oldest.remove();
+            unindex(orphan.block);
+            evicted.add(orphan.block);
+        }
+        return evicted;
+    }
+
+    /**
+     * Removes and returns the orphans waiting for the block with hash {@code parentHash}, in the
+     * order they were added
+     */
+    public ArrayList<Block> removeChildrenOf(byte[] parentHash) {
+        ArrayList<Block> children = byParent.remove(probe.set(parentHash));
+        if (children == null)
+            return new ArrayList<Block>();
+        for (Block child : children)
+            H.remove(probe.set(child.getHash()));
+        return children;
+    }
+
+    /** @return true if some orphans wait for the block with hash {@code parentHash} */
+    public boolean hasChildren(byte[] parentHash) {
+        return byParent.containsKey(probe.set(parentHash));
+    }
+
+    public boolean contains(byte[] blockHash) {
+        return H.containsKey(probe.set(blockHash));
+    }
+
+    public int size() {
+        return H.size();
+    }
+
+    private void unindex(Block block) {
+        ArrayList<Block> waiting = byParent.get(probe.set(block.getPrevBlockHash()));
+        if (waiting == null)
+            return;
+        waiting.remove(block);
+        if (waiting.isEmpty())
+            byParent.remove(probe);
+    }
+
+    private static class Orphan {
+        private final Block block;
+        private final long addedAt;
+
+        private Orphan(Block block, long addedAt) {
+            this.block = block;
+            this.addedAt = addedAt;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The transactions that claim outputs of transactions that are unknown yet, indexed by the hashes of
+ * those missing parents. Once the pool is full, the oldest orphans are evicted first.
+ */
+public class OrphanTransactionPool {
+
+    public static final int DEFAULT_MAX_ORPHANS = 1000;
+
+    private final int maxOrphans;
+    // In the order the orphans were added, so the oldest comes first
+    private LinkedHashMap<ByteArrayWrapper, Orphan> H;
+    private HashMap<ByteArrayWrapper, ArrayList<Orphan>> byMissingParent;
+
+    public OrphanTransactionPool() {
+        this(DEFAULT_MAX_ORPHANS);
+    }
+
+    public OrphanTransactionPool(int maxOrphans) {
+        this.maxOrphans = maxOrphans;
+        H = new LinkedHashMap<ByteArrayWrapper, Orphan>();
+        byMissingParent = new HashMap<ByteArrayWrapper, ArrayList<Orphan>>();
+    }
+
+    /** Adds {@code tx}, which waits for the transactions with hashes {@code missingParents} */
+    public void addTransaction(Transaction tx, Collection<ByteArrayWrapper> missingParents) {
+        ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
+        if (H.containsKey(hash) || maxOrphans <= 0)
+            return;
+
+        Orphan orphan = new Orphan(tx, new ArrayList<ByteArrayWrapper>(missingParents));
+        H.put(hash, orphan);
+        for (ByteArrayWrapper parent : orphan.missingParents)
+            byMissingParent.computeIfAbsent(parent, k -> new ArrayList<Orphan>()).add(orphan);
+
+        Iterator<Orphan> oldest = H.values().iterator();
+        while (H.size() > maxOrphans) {
+            Orphan evicted = oldest.next();
+            oldest.remove();
+            unindex(evicted);
+        }
+    }
+
+    /**
+     * Removes and returns the orphans waiting for the transaction with hash {@code parentHash}, in
+     * the order they were added
+     */
+    public ArrayList<Transaction> removeChildrenOf(byte[] parentHash) {
+        ArrayList<Transaction> children = new ArrayList<Transaction>();
+        ArrayList<Orphan> waiting = byMissingParent.remove(new ByteArrayWrapper(parentHash));
+        if (waiting == null)
+            return children;
+        for (Orphan orphan : waiting) {
+            if (H.remove(new ByteArrayWrapper(orphan.tx.getHash())) != null) {
+                unindex(orphan);
+                children.add(orphan.tx);
+            }
+        }
+        return children;
+    }
+
+    /** Removes the orphan with hash {@code txHash}, if there is one */
+    public void removeTransaction(byte[] txHash) {
+        Orphan orphan = H.remove(new ByteArrayWrapper(txHash));
+        if (orphan != null)
+            unindex(orphan);
+    }
+
+    public boolean contains(byte[] txHash) {
+        return H.containsKey(new ByteArrayWrapper(txHash));
+    }
+
+    public int size() {
+        return H.size();
+    }
+
+    private void unindex(Orphan orphan) {
+        for (ByteArrayWrapper parent : orphan.missingParents) {
+            ArrayList<Orphan> waiting = byMissingParent.get(parent);
+            if (waiting == null)
+                continue;
+            waiting.remove(orphan);
+            if (waiting.isEmpty())
+                byMissingParent.remove(parent);
+        }
+    }
+
+    private static class Orphan {
+        private final Transaction tx;
+        private final ArrayList<ByteArrayWrapper> missingParents;
+
+        private Orphan(Transaction tx, ArrayList<ByteArrayWrapper> missingParents) {
+            this.tx = tx;
+            this.missingParents = missingParents;
+        }
+    }
+}
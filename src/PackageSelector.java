@@ -0,0 +1,229 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.PriorityQueue;
+
+/**
+ * Selects the transactions of a block by the fee rate of their ancestor packages: a transaction
+ * together with all of its ancestors that are not in the block yet. A high-fee child can then pull
+ * in a low-fee parent (child pays for parent). Packages are added greedily, best fee rate first,
+ * as long as the block stays within its limits.
+ * <p>
+ * A package may hold at most {@link #MAX_PACKAGE_TXS} transactions and {@link #MAX_PACKAGE_BYTES}
+ * bytes. Transactions with larger packages are left out, which keeps ancestor sets small; the
+ * blockchain doesn't admit them to its pool in the first place.
+ */
+public class PackageSelector {
+
+    /** The most transactions of a package: a transaction and its unconfirmed ancestors */
+    public static final int MAX_PACKAGE_TXS = 25;
+    /** The most bytes of raw transactions of a package */
+    public static final long MAX_PACKAGE_BYTES = 101000;
+
+    /**
+     * @return transactions of {@code txs} to put in a block on top of {@code utxoPool}, every one
+     *         after its ancestors, with at most {@code maxTxs} transactions and
+     *         {@code maxBytes} bytes of raw transactions
+     */
+    public static ArrayList<Transaction> select(ArrayList<Transaction> txs, UTXOPool utxoPool, int maxTxs, long maxBytes) {
+        HashMap<ByteArrayWrapper, Node> nodes = new HashMap<>();
+        ArrayList<Node> nodeList = new ArrayList<>();
+        for (Transaction tx : txs) {
+            Node node = new Node(tx);
+            if (nodes.putIfAbsent(new ByteArrayWrapper(tx.getHash()), node) == null) {
+                nodeList.add(node);
+            }
+        }
+
+        for (Node node : nodeList) {
+            node.isValid = node.computeFee(utxoPool, nodes);
+            if (!node.isValid) {
+                continue;
+            }
+            for (Transaction.Input in : node.tx.getInputs()) {
+                Node parent = nodes.get(new ByteArrayWrapper(in.prevTxHash));
+                if (parent != null && parent != node && !node.parents.contains(parent)) {
+                    node.parents.add(parent);
+                }
+            }
+        }
+
+        // Ancestors come before descendants in sortedOrder, which leaves out the transactions that
+        // claim outputs that can't be found or exceed the package limits, and their descendants.
+        // The parents are visited depth first with a stack, so long chains can't overflow the
+        // call stack.
+        ArrayList<Node> sortedOrder = new ArrayList<>();
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        for (Node root : nodeList) {
+            if (root.isVisited) {
+                continue;
+            }
+            root.isVisiting = true;
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                Node node = stack.peek();
+                if (node.nextParent < node.parents.size()) {
+                    Node parent = node.parents.get(node.nextParent++);
+                    if (!parent.isVisited && !parent.isVisiting) {
+                        parent.isVisiting = true;
+                        stack.push(parent);
+                    }
+                    continue;
+                }
+                stack.pop();
+                addAfterAncestors(node, sortedOrder);
+            }
+        }
+
+        PriorityQueue<Candidate> candidates = new PriorityQueue<>(
+                Comparator.comparingDouble((Candidate candidate) -> -candidate.feeRate)
+                        .thenComparingInt(candidate -> candidate.node.order));
+        for (Node node : sortedOrder) {
+            for (Node ancestor : node.ancestors) {
+                ancestor.descendants.add(node);
+                node.packageFee += ancestor.fee;
+                node.packageSize += ancestor.size;
+            }
+            candidates.add(new Candidate(node));
+        }
+
+        ArrayList<Transaction> selected = new ArrayList<>();
+        long selectedBytes = 0;
+        while (!candidates.isEmpty()) {
+            Candidate candidate = candidates.poll();
+            Node node = candidate.node;
+            if (node.selected || candidate.version != node.version) {
+                continue;
+            }
+
+            ArrayList<Node> pkg = new ArrayList<>();
+            for (Node ancestor : node.ancestors) {
+                if (!ancestor.selected) {
+                    pkg.add(ancestor);
+                }
+            }
+            pkg.add(node);
+            if (selected.size() + pkg.size() > maxTxs || selectedBytes + node.packageSize > maxBytes) {
+                continue;
+            }
+
+            pkg.sort(Comparator.comparingInt(n -> n.order));
+            for (Node included : pkg) {
+                included.selected = true;
+                selected.add(included.tx);
+                selectedBytes += included.size;
+            }
+            for (Node included : pkg) {
+                for (Node descendant : included.descendants) {
+                    if (!descendant.selected) {
+                        descendant.packageFee -= included.fee;
+                        descendant.packageSize -= included.size;
+                        descendant.version++;
+                        candidates.add(new Candidate(descendant));
+                    }
+                }
+            }
+        }
+        return selected;
+    }
+
+    // Computes the ancestor set of node, whose parents have all been visited, and appends node
+    // after them if it is valid and within the package limits
+    private static void addAfterAncestors(Node node, ArrayList<Node> sortedOrder) {
+        node.isVisiting = false;
+        node.isVisited = true;
+        long packageSize = node.size;
+        for (Node parent : node.parents) {
+            // A parent still being visited is part of a hash cycle and can't be an ancestor
+            if (parent.isVisiting) {
+                continue;
+            }
+            node.isValid &= parent.isValid;
+            if (!node.isValid) {
+                break;
+            }
+            for (Node ancestor : parent.ancestors) {
+                if (node.ancestors.add(ancestor)) {
+                    packageSize += ancestor.size;
+                }
+            }
+            if (node.ancestors.add(parent)) {
+                packageSize += parent.size;
+            }
+            if (node.ancestors.size() + 1 > MAX_PACKAGE_TXS || packageSize > MAX_PACKAGE_BYTES) {
+                node.isValid = false;
+                break;
+            }
+        }
+        if (node.isValid) {
+            node.order = sortedOrder.size();
+            sortedOrder.add(node);
+        } else {
+            node.ancestors.clear();
+        }
+    }
+
+    private static class Node {
+        private final Transaction tx;
+        private final int size;
+        private double fee;
+        private final ArrayList<Node> parents = new ArrayList<>();
+        private final LinkedHashSet<Node> ancestors = new LinkedHashSet<>();
+        private final ArrayList<Node> descendants = new ArrayList<>();
+        // Fee and size of the node with its ancestors that are not selected yet
+        private double packageFee;
+        private long packageSize;
+        private int order;
+        private int version;
+        // The next parent to visit when sorting
+        private int nextParent;
+        private boolean isValid;
+        private boolean isVisiting;
+        private boolean isVisited;
+        private boolean selected;
+
+        private Node(Transaction tx) {
+            this.tx = tx;
+            this.size = tx.getRawTxSize();
+        }
+
+        // Computes the fee from the outputs claimed in utxoPool or in other nodes, if all exist
+        private boolean computeFee(UTXOPool utxoPool, HashMap<ByteArrayWrapper, Node> nodes) {
+            fee = 0;
+            for (Transaction.Input in : tx.getInputs()) {
+                if (in == null || in.prevTxHash == null || in.outputIndex < 0) {
+                    return false;
+                }
+                Transaction.Output claimed = utxoPool.getTxOutput(new UTXO(in.prevTxHash, in.outputIndex));
+                if (claimed == null) {
+                    Node parent = nodes.get(new ByteArrayWrapper(in.prevTxHash));
+                    claimed = parent == null ? null : parent.tx.getOutput(in.outputIndex);
+                }
+                if (claimed == null) {
+                    return false;
+                }
+                fee += claimed.value;
+            }
+            for (Transaction.Output op : tx.getOutputs()) {
+                fee -= op.value;
+            }
+            packageFee = fee;
+            packageSize = size;
+            return true;
+        }
+    }
+
+    private static class Candidate {
+        private final Node node;
+        private final int version;
+        private final double feeRate;
+
+        private Candidate(Node node) {
+            this.node = node;
+            this.version = node.version;
+            this.feeRate = node.packageSize == 0 ? node.packageFee : node.packageFee / node.packageSize;
+        }
+    }
+}
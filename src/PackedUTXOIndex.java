@@ -0,0 +1,211 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * A map from UTXO to transaction output packed into a single {@code long[]}, for pools of millions
+ * of UTXOs. Each slot of the open addressing table holds the 32-byte transaction hash, the output
+ * index, the value and the id of the address in a KeyRegistry, so an entry costs no object at all.
+ * The outputs returned are created on demand, with their addresses interned by the registry. The
+ * few UTXOs that don't fit, because their hash isn't 32 bytes long or they map to a null output,
+ * are kept in a plain map.
+ */
+public class PackedUTXOIndex {
+
+    public static final int HASH_LENGTH = 32;
+
+    // The hash, (index << 32 | address reference) and the bits of the value of each slot
+    private static final int SLOT_LONGS = 6;
+    private static final int INDEX_AND_ADDRESS = 4;
+    private static final int VALUE = 5;
+    // Address references: an empty slot, an output without address, and ids shifted by this
+    private static final int EMPTY = 0;
+    private static final int NO_ADDRESS = 1;
+    private static final int FIRST_KEY = 2;
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final KeyRegistry keyRegistry;
+    private long[] slots;
+    // The number of slots minus one, a power of two minus one
+    private int mask;
+    private int size;
+    private HashMap<UTXO, Transaction.Output> others;
+    // Outputs are inner objects of a transaction, which this one stands for
+    private final Transaction outputs;
+
+    /**
+     * Creates an empty index with room for {@code expectedSize} UTXOs before it grows, with the
+     * addresses numbered by a registry of its own
+     */
+    public PackedUTXOIndex(int expectedSize) {
+        this(new KeyRegistry(), expectedSize);
+    }
+
+    public PackedUTXOIndex(KeyRegistry keyRegistry, int expectedSize) {
+        this.keyRegistry = keyRegistry;
+        int capacity = 16;
+        while (capacity * 3L / 4 < expectedSize)
+            capacity *= 2;
+        slots = new long[capacity * SLOT_LONGS];
+        mask = capacity - 1;
+        others = new HashMap<UTXO, Transaction.Output>();
+        outputs = new Transaction();
+    }
+
+    /** Creates a copy of {@code index} */
+    public PackedUTXOIndex(PackedUTXOIndex index) {
+        keyRegistry = index.keyRegistry;
+        slots = index.slots.clone();
+        mask = index.mask;
+        size = index.size;
+        others = new HashMap<UTXO, Transaction.Output>(index.others);
+        outputs = index.outputs;
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        byte[] hash = utxo.getTxHash();
+        if (!fits(hash) || txOut == null) {
+            remove(utxo);
+            others.put(utxo, txOut);
+            return;
+        }
+        others.remove(utxo);
+
+        int slot = find(hash, utxo.getIndex());
+        int base = slot * SLOT_LONGS;
+        if (addressReference(base) == EMPTY) {
+            if ((size + 1) * 4L > (mask + 1) * 3L) {
+                grow();
+                base = find(hash, utxo.getIndex()) * SLOT_LONGS;
+            }
+            for (int i = 0; i < 4; i++)
+                slots[base + i] = (long) LONGS.get(hash, 8 * i);
+            size++;
+        }
+        int address = txOut.address == null ? NO_ADDRESS : FIRST_KEY + txOut.getKeyId(keyRegistry);
+        slots[base + INDEX_AND_ADDRESS] = (long) utxo.getIndex() << 32 | (address & 0xFFFFFFFFL);
+        slots[base + VALUE] = Double.doubleToRawLongBits(txOut.value);
+    }
+
+    /** @return true if {@code utxo} was in the index */
+    public boolean remove(UTXO utxo) {
+        if (others.containsKey(utxo)) {
+            others.remove(utxo);
+            return true;
+        }
+        byte[] hash = utxo.getTxHash();
+        if (!fits(hash))
+            return false;
+
+        int slot = find(hash, utxo.getIndex());
+        if (addressReference(slot * SLOT_LONGS) == EMPTY)
+            return false;
+        // Shifts back the entries after the removed one, so that no probe sequence is broken
+        int hole = slot;
+        for (int next = (hole + 1) & mask; addressReference(next * SLOT_LONGS) != EMPTY; next = (next + 1) & mask) {
+            int home = home(slots, next * SLOT_LONGS) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                System.arraycopy(slots, next * SLOT_LONGS, slots, hole * SLOT_LONGS, SLOT_LONGS);
+                hole = next;
+            }
+        }
+        Arrays.fill(slots, hole * SLOT_LONGS, (hole + 1) * SLOT_LONGS, 0);
+        size--;
+        return true;
+    }
+
+    /** @return the output of {@code utxo}, or {@code absent} if it isn't in the index */
+    public Transaction.Output get(UTXO utxo, Transaction.Output absent) {
+        byte[] hash = utxo.getTxHash();
+        if (!fits(hash) || !others.isEmpty() && others.containsKey(utxo))
+            return others.getOrDefault(utxo, absent);
+
+        int base = find(hash, utxo.getIndex()) * SLOT_LONGS;
+        int address = addressReference(base);
+        if (address == EMPTY)
+            return absent;
+        return getOutput(base, address);
+    }
+
+    public int size() {
+        return size + others.size();
+    }
+
+    /** Passes every UTXO of the index with its output to {@code action} */
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        for (int slot = 0; slot <= mask; slot++) {
+            int base = slot * SLOT_LONGS;
+            int address = addressReference(base);
+            if (address == EMPTY)
+                continue;
+            byte[] hash = new byte[HASH_LENGTH];
+            for (int i = 0; i < 4; i++)
+                LONGS.set(hash, 8 * i, slots[base + i]);
+            UTXO utxo = new UTXO(hash, (int) (slots[base + INDEX_AND_ADDRESS] >> 32));
+            action.accept(utxo, getOutput(base, address));
+        }
+        for (Map.Entry<UTXO, Transaction.Output> entry : others.entrySet())
+            action.accept(entry.getKey(), entry.getValue());
+    }
+
+    private static boolean fits(byte[] hash) {
+        return hash != null && hash.length == HASH_LENGTH;
+    }
+
+    // Creates the output of the slot at base, whose address reference is address, knowing the
+    // forms of its key kept by the registry
+    private Transaction.Output getOutput(int base, int address) {
+        double value = Double.longBitsToDouble(slots[base + VALUE]);
+        if (address == NO_ADDRESS)
+            return outputs.new Output(value, null);
+        return outputs.new Output(value, keyRegistry, address - FIRST_KEY);
+    }
+
+    private int addressReference(int base) {
+        return (int) slots[base + INDEX_AND_ADDRESS];
+    }
+
+    // Finds the slot of the UTXO, or the empty slot where it would go
+    private int find(byte[] hash, int index) {
+        long h0 = (long) LONGS.get(hash, 0);
+        long h1 = (long) LONGS.get(hash, 8);
+        long h2 = (long) LONGS.get(hash, 16);
+        long h3 = (long) LONGS.get(hash, 24);
+        for (int slot = hash(h0, index) & mask; ; slot = (slot + 1) & mask) {
+            int base = slot * SLOT_LONGS;
+            if (addressReference(base) == EMPTY)
+                return slot;
+            if (slots[base] == h0 && slots[base + 1] == h1 && slots[base + 2] == h2 && slots[base + 3] == h3
+                    && (int) (slots[base + INDEX_AND_ADDRESS] >> 32) == index)
+                return slot;
+        }
+    }
+
+    private static int home(long[] slots, int base) {
+        return hash(slots[base], (int) (slots[base + INDEX_AND_ADDRESS] >> 32));
+    }
+
+    private static int hash(long h0, int index) {
+        long h = (h0 ^ index) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void grow() {
+        long[] old = slots;
+        slots = new long[old.length * 2];
+        mask = 2 * (mask + 1) - 1;
+        for (int base = 0; base < old.length; base += SLOT_LONGS) {
+            if ((int) old[base + INDEX_AND_ADDRESS] == EMPTY)
+                continue;
+            int slot = home(old, base) & mask;
+            while (addressReference(slot * SLOT_LONGS) != EMPTY)
+                slot = (slot + 1) & mask;
+            System.arraycopy(old, base, slots, slot * SLOT_LONGS, SLOT_LONGS);
+        }
+    }
+}
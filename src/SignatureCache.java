@@ -0,0 +1,105 @@
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of the input signatures that were verified successfully, keyed by the hash of the
+ * transaction and the index of the input. The least recently used entries are evicted first.
+ */
+public class SignatureCache {
+
+    public static final int DEFAULT_CAPACITY = 50000;
+
+    private final int capacity;
+    // A UTXO is used as the (transaction hash, input index) pair here
+    private final LinkedHashMap<UTXO, Entry> entries;
+    private long hits;
+    private long misses;
+
+    public SignatureCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<UTXO, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UTXO, Entry> eldest) {
+                return size() > SignatureCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @return true if {@code signature} is a valid signature of {@code message} under
+     *         {@code pubKey}, as {@link Crypto#verifySignature} does, skipping the verification if
+     *         the same input of the transaction with hash {@code txHash} was already verified
+     */
+    public boolean verifySignature(byte[] txHash, int inputIndex, PublicKey pubKey, byte[] message, byte[] signature) {
+        if (txHash == null) {
+            return Crypto.verifySignature(pubKey, message, signature);
+        }
+
+        if (isVerified(txHash, inputIndex, pubKey, message, signature)) {
+            return true;
+        }
+
+        if (!Crypto.verifySignature(pubKey, message, signature)) {
+            return false;
+        }
+
+        addVerified(txHash, inputIndex, pubKey, message, signature);
+        return true;
+    }
+
+    /**
+     * @return true if the same input of the transaction with hash {@code txHash} was already
+     *         verified with this key, message and signature. The transaction hash isn't checked
+     *         here, so the entry must also match what is being verified.
+     */
+    public synchronized boolean isVerified(byte[] txHash, int inputIndex, PublicKey pubKey, byte[] message, byte[] signature) {
+        Entry entry = txHash == null ? null : entries.get(new UTXO(txHash, inputIndex));
+        if (entry != null && entry.publicKey.equals(pubKey) && Arrays.equals(entry.signature, signature)
+                && Arrays.equals(entry.message, message)) {
+            hits++;
+            return true;
+        }
+
+        misses++;
+        return false;
+    }
+
+    /** Remembers that {@code signature} was verified as a valid signature of {@code message} */
+    public synchronized void addVerified(byte[] txHash, int inputIndex, PublicKey pubKey, byte[] message, byte[] signature) {
+        if (txHash != null) {
+            entries.put(new UTXO(txHash, inputIndex), new Entry(pubKey, message, signature));
+        }
+    }
+
+    /** @return the number of verifications that were skipped */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return the number of verifications that were not found in the cache */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private static class Entry {
+        private final PublicKey publicKey;
+        private final byte[] message;
+        private final byte[] signature;
+
+        public Entry(PublicKey publicKey, byte[] message, byte[] signature) {
+            this.publicKey = publicKey;
+            this.message = message;
+            this.signature = signature;
+        }
+    }
+}
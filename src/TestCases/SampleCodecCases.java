@@ -0,0 +1,309 @@
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.util.Arrays;
+
+public class SampleCodecCases {
+
+  public static void main(String[] args) {
+
+    try {
+      case1();
+      case2();
+      case3();
+      case4();
+      case5();
+      case6();
+    }
+    catch(Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  private static void case1() throws Exception {
+
+    // This case encodes blocks, with and without a Merkle root, and a transaction, and checks that
+    // they decode to the same raw data and hashes
+
+    KeyPair keyPair1 = TestFixtures.generateNewKeyPair();
+    KeyPair keyPair2 = TestFixtures.generateNewKeyPair();
+
+    for(boolean useMerkleRoot : new boolean[] {false, true}) {
+      Block genesisBlock = new Block(null, keyPair1.getPublic(), useMerkleRoot);
+      genesisBlock.finalize();
+      Transaction tx1 = TestFixtures.spend(genesisBlock.getCoinbase(), 0, keyPair1, keyPair2, 10);
+      Transaction tx2 = TestFixtures.spend(tx1, 0, keyPair2, keyPair1, 5);
+      Block block = new Block(genesisBlock.getHash(), keyPair2.getPublic(), useMerkleRoot);
+      block.addTransaction(tx1);
+      block.addTransaction(tx2);
+      block.finalize();
+
+      Block decoded = BlockCodec.decode(encode(block));
+      if(decoded == null || !Arrays.equals(decoded.getHash(), block.getHash())
+              || !Arrays.equals(decoded.getRawBlock(), block.getRawBlock())
+              || !Arrays.equals(decoded.getPrevBlockHash(), block.getPrevBlockHash())) {
+        throw new RuntimeException("Block round trip failed");
+      }
+      for(int i = 0; i < block.getTransactions().size(); i++) {
+        if(!Arrays.equals(decoded.getTransaction(i).getHash(), block.getTransaction(i).getHash())) {
+          throw new RuntimeException("Transaction hash lost in the round trip");
+        }
+      }
+    }
+
+    Transaction tx = TestFixtures.spend(new Transaction(Block.COINBASE, keyPair1.getPublic()), 0, keyPair1, keyPair2, 10);
+    ByteBuffer buffer = ByteBuffer.allocate(BlockCodec.getEncodedSize(tx));
+    BlockCodec.encode(tx, buffer);
+    buffer.flip();
+    Transaction decoded = BlockCodec.decodeTransaction(buffer);
+    if(decoded == null || buffer.hasRemaining() || !Arrays.equals(decoded.getHash(), tx.getHash())
+            || !Arrays.equals(decoded.getRawTx(), tx.getRawTx())) {
+      throw new RuntimeException("Transaction round trip failed");
+    }
+    System.out.println("Case 1 is OK");
+  }
+
+  private static void case2() throws Exception {
+
+    // This case decodes a block and a transaction whose encoded hashes don't match their contents.
+    // The hashes should be computed from the decoded contents instead.
+
+    KeyPair keyPair1 = TestFixtures.generateNewKeyPair();
+    KeyPair keyPair2 = TestFixtures.generateNewKeyPair();
+
+    Block genesisBlock = new Block(null, keyPair1.getPublic());
+    genesisBlock.finalize();
+    Transaction tx = TestFixtures.spend(genesisBlock.getCoinbase(), 0, keyPair1, keyPair2, 10);
+    Transaction other = TestFixtures.spend(genesisBlock.getCoinbase(), 0, keyPair1, keyPair1, 10);
+    Block block = new Block(genesisBlock.getHash(), keyPair2.getPublic());
+    block.addTransaction(tx);
+    block.finalize();
+
+    byte[] hash = block.getHash();
+    byte[] txHash = tx.getHash();
+    tx.setHash(other.getHash());
+    ByteBuffer buffer = encode(block);
+    // The block hash follows the version, the flags and its length
+    buffer.put(3, (byte) (buffer.get(3) ^ 1));
+
+    Block decoded = BlockCodec.decode(buffer);
+    if(!Arrays.equals(decoded.getHash(), hash) || !Arrays.equals(decoded.getTransaction(0).getHash(), txHash)) {
+      throw new RuntimeException("The encoded hashes were trusted");
+    }
+
+    buffer = ByteBuffer.allocate(BlockCodec.getEncodedSize(tx));
+    BlockCodec.encode(tx, buffer);
+    buffer.flip();
+    if(!Arrays.equals(BlockCodec.decodeTransaction(buffer).getHash(), txHash)) {
+      throw new RuntimeException("The encoded transaction hash was trusted");
+    }
+    System.out.println("Case 2 is OK");
+  }
+
+  private static void case3() throws Exception {
+
+    // This case writes blocks to a block store, reopens it, and reads them back, and then reopens
+    // it after the last record was torn
+
+    KeyPair keyPair1 = TestFixtures.generateNewKeyPair();
+    KeyPair keyPair2 = TestFixtures.generateNewKeyPair();
+    Path directory = Files.createTempDirectory("blocks");
+
+    Block genesisBlock = new Block(null, keyPair1.getPublic());
+    genesisBlock.finalize();
+    Block[] blocks = new Block[5];
+    Block prev = genesisBlock;
+    for(int i = 0; i < blocks.length; i++) {
+      blocks[i] = new Block(prev.getHash(), TestFixtures.generateNewKeyPair().getPublic(), i % 2 == 0);
+      if(i == 0) {
+        blocks[i].addTransaction(TestFixtures.spend(genesisBlock.getCoinbase(), 0, keyPair1, keyPair2, 10));
+      }
+      blocks[i].finalize();
+      prev = blocks[i];
+    }
+
+    try(BlockStore blockStore = new BlockStore(directory, 4096)) {
+      for(Block block : blocks) {
+        if(!blockStore.put(block)) {
+          throw new RuntimeException("Unexpected failure");
+        }
+      }
+      if(blockStore.put(blocks[0])) {
+        throw new RuntimeException("A block was stored twice");
+      }
+    }
+    try(BlockStore blockStore = new BlockStore(directory, 4096)) {
+      if(blockStore.size() != blocks.length) {
+        throw new RuntimeException("Blocks were lost when reopening the store");
+      }
+      for(Block block : blocks) {
+        Block stored = blockStore.getBlock(block.getHash());
+        if(stored == null || !Arrays.equals(stored.getHash(), block.getHash())
+                || !Arrays.equals(stored.getRawBlock(), block.getRawBlock())) {
+          throw new RuntimeException("Block store round trip failed");
+        }
+      }
+    }
+
+    // A crash may leave the last record with its length but not all of its block. The store should
+    // drop that record when reopened, and append over it.
+    int lastOffset = 0;
+    for(int i = 0; i < blocks.length - 1; i++) {
+      lastOffset += 2 * Integer.BYTES + BlockCodec.getEncodedSize(blocks[i]);
+    }
+    Path segmentFile = directory.resolve("blocks-00000.dat");
+    byte[] segment = Files.readAllBytes(segmentFile);
+    int lastEnd = lastOffset + 2 * Integer.BYTES + BlockCodec.getEncodedSize(blocks[blocks.length - 1]);
+    if(lastEnd > segment.length) {
+      throw new RuntimeException("The blocks don't fit in one segment");
+    }
+    segment[lastEnd - 1] ^= 1;
+    Files.write(segmentFile, segment);
+    try(BlockStore blockStore = new BlockStore(directory, 4096)) {
+      if(blockStore.size() != blocks.length - 1 || blockStore.contains(blocks[blocks.length - 1].getHash())) {
+        throw new RuntimeException("A torn record was read back");
+      }
+      if(!blockStore.put(blocks[blocks.length - 1])) {
+        throw new RuntimeException("Unexpected failure");
+      }
+    }
+    try(BlockStore blockStore = new BlockStore(directory, 4096)) {
+      if(blockStore.size() != blocks.length || blockStore.getBlock(blocks[blocks.length - 1].getHash()) == null) {
+        throw new RuntimeException("The block appended over a torn record was lost");
+      }
+    }
+    System.out.println("Case 3 is OK");
+  }
+
+  private static void case4() throws Exception {
+
+    // This case writes a snapshot of a blockchain and restarts another one from it. Both should
+    // have the same max height block and UTXO pool, and accept the same next block.
+
+    KeyPair keyPair1 = TestFixtures.generateNewKeyPair();
+    KeyPair keyPair2 = TestFixtures.generateNewKeyPair();
+    Path snapshotFile = Files.createTempDirectory("snapshot").resolve("chain.snapshot");
+
+    Block genesisBlock = new Block(null, keyPair1.getPublic());
+    genesisBlock.finalize();
+    BlockChain blockChain = new BlockChain(genesisBlock);
+    BlockHandler blockHandler = new BlockHandler(blockChain);
+
+    Transaction tx = TestFixtures.spend(genesisBlock.getCoinbase(), 0, keyPair1, keyPair2, Block.COINBASE);
+    Block block = new Block(genesisBlock.getHash(), TestFixtures.generateNewKeyPair().getPublic());
+    block.addTransaction(tx);
+    block.finalize();
+    if(!blockHandler.processBlock(block)) {
+      throw new RuntimeException("Unexpected failure");
+    }
+    Transaction pending = TestFixtures.spend(tx, 0, keyPair2, keyPair1, Block.COINBASE);
+    blockHandler.processTx(pending);
+    blockChain.writeSnapshot(snapshotFile);
+
+    BlockChain restarted = new BlockChain(snapshotFile, null);
+    if(!Arrays.equals(restarted.getMaxHeightBlock().getHash(), block.getHash())
+            || !TestFixtures.samePool(restarted.getMaxHeightUTXOPool(), blockChain.getMaxHeightUTXOPool())) {
+      throw new RuntimeException("Snapshot round trip failed");
+    }
+    if(restarted.getTransactionPool().getTransaction(pending.getHash()) == null) {
+      throw new RuntimeException("The transaction pool was lost in the snapshot");
+    }
+
+    Block next = new BlockHandler(restarted).createBlock(keyPair1.getPublic());
+    if(next == null || next.getTransactions().size() != 1 || !blockChain.addBlock(next)) {
+      throw new RuntimeException("The restarted blockchain created an invalid block");
+    }
+    System.out.println("Case 4 is OK");
+  }
+
+  private static void case5() throws Exception {
+
+    // This case decodes malformed and truncated blocks and transactions, which should be rejected
+    // with null rather than an exception or an allocation of the sizes they claim
+
+    KeyPair keyPair1 = TestFixtures.generateNewKeyPair();
+    KeyPair keyPair2 = TestFixtures.generateNewKeyPair();
+
+    // A block claiming about 2^31 keys
+    byte[] huge = {BlockCodec.VERSION, 0, 0, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 0};
+    // A block whose key count doesn't end within 5 bytes
+    byte[] tooLong = {BlockCodec.VERSION, 0, 0, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0};
+    for(byte[] bytes : new byte[][] {huge, tooLong, {BlockCodec.VERSION}, {}}) {
+      if(BlockCodec.decode(ByteBuffer.wrap(bytes)) != null || BlockCodec.decodeTransaction(ByteBuffer.wrap(bytes)) != null) {
+        throw new RuntimeException("Malformed input was decoded");
+      }
+    }
+
+    Block genesisBlock = new Block(null, keyPair1.getPublic());
+    genesisBlock.finalize();
+    Transaction tx = TestFixtures.spend(genesisBlock.getCoinbase(), 0, keyPair1, keyPair2, 10);
+    Block block = new Block(genesisBlock.getHash(), keyPair2.getPublic());
+    block.addTransaction(tx);
+    block.finalize();
+    ByteBuffer encodedBlock = encode(block);
+    ByteBuffer encodedTx = ByteBuffer.allocate(BlockCodec.getEncodedSize(tx));
+    BlockCodec.encode(tx, encodedTx);
+    encodedTx.flip();
+
+    for(int length = 0; length < encodedBlock.limit(); length++) {
+      if(BlockCodec.decode(encodedBlock.slice(0, length)) != null) {
+        throw new RuntimeException("A truncated block was decoded");
+      }
+    }
+    for(int length = 0; length < encodedTx.limit(); length++) {
+      if(BlockCodec.decodeTransaction(encodedTx.slice(0, length)) != null) {
+        throw new RuntimeException("A truncated transaction was decoded");
+      }
+    }
+    System.out.println("Case 5 is OK");
+  }
+
+  private static void case6() throws Exception {
+
+    // This case enables snapshots to a file that can't be written, as its directory is a file. The
+    // failure should go to the listener, and the next snapshot, to a good file, should be written.
+
+    KeyPair keyPair1 = TestFixtures.generateNewKeyPair();
+    Path directory = Files.createTempDirectory("snapshot");
+    Path badFile = Files.createFile(directory.resolve("file")).resolve("chain.snapshot");
+    Path goodFile = directory.resolve("chain.snapshot");
+    int[] failures = new int[1];
+
+    Block genesisBlock = new Block(null, keyPair1.getPublic());
+    genesisBlock.finalize();
+    BlockChain blockChain = new BlockChain(genesisBlock);
+    blockChain.enableSnapshots(badFile, 1, (file, failure) -> {
+      if(file.equals(badFile)) {
+        failures[0]++;
+      }
+    });
+
+    Block block = new Block(genesisBlock.getHash(), TestFixtures.generateNewKeyPair().getPublic());
+    block.finalize();
+    if(!blockChain.addBlock(block) || failures[0] != 1) {
+      throw new RuntimeException("The failed snapshot wasn't reported");
+    }
+
+    blockChain.enableSnapshots(goodFile, 1, (file, failure) -> failures[0]++);
+    Block next = new Block(block.getHash(), TestFixtures.generateNewKeyPair().getPublic());
+    next.finalize();
+    if(!blockChain.addBlock(next) || failures[0] != 1 || !Files.exists(goodFile)
+            || Files.exists(directory.resolve("chain.snapshot.tmp"))) {
+      throw new RuntimeException("The snapshot wasn't written");
+    }
+    BlockChain restarted = new BlockChain(goodFile, null);
+    if(!Arrays.equals(restarted.getMaxHeightBlock().getHash(), next.getHash())) {
+      throw new RuntimeException("Snapshot round trip failed");
+    }
+    System.out.println("Case 6 is OK");
+  }
+
+  // Encodes block into a buffer ready to be decoded
+  private static ByteBuffer encode(Block block) {
+    ByteBuffer buffer = ByteBuffer.allocate(BlockCodec.getEncodedSize(block));
+    BlockCodec.encode(block, buffer);
+    buffer.flip();
+    return buffer;
+  }
+}
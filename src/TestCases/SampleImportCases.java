@@ -0,0 +1,227 @@
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class SampleImportCases {
+
+  public static void main(String[] args) {
+
+    try {
+      case1();
+      case2();
+      case3();
+      case4();
+    }
+    catch(Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  private static void case1() throws Exception {
+
+    // This case imports a chain of blocks longer than CUT_OFF_AGE spending each other's coinbases,
+    // with transactions waiting in the pool, and compares the result with adding the blocks one by
+    // one
+
+    KeyPair keyPair1 = TestFixtures.generateNewKeyPair();
+    KeyPair keyPair2 = TestFixtures.generateNewKeyPair();
+
+    Block genesisBlock = new Block(null, keyPair1.getPublic());
+    genesisBlock.finalize();
+
+    ArrayList<Block> blocks = new ArrayList<Block>();
+    ArrayList<KeyPair> owners = new ArrayList<KeyPair>();
+    Block prev = genesisBlock;
+    KeyPair prevOwner = keyPair1;
+    for(int i = 0; i < 2 * BlockChain.CUT_OFF_AGE; i++) {
+      KeyPair owner = TestFixtures.generateNewKeyPair();
+      Block block = new Block(prev.getHash(), owner.getPublic());
+      block.addTransaction(TestFixtures.spend(prev.getCoinbase(), 0, prevOwner, keyPair2, Block.COINBASE));
+      block.finalize();
+      blocks.add(block);
+      owners.add(owner);
+      prev = block;
+      prevOwner = owner;
+    }
+
+    // One transaction mined in the third block, one conflicting with the fifth, and one spending
+    // the coinbase of the last block, which stays in the pool
+    Transaction mined = blocks.get(2).getTransaction(0);
+    Transaction conflicting = TestFixtures.spend(blocks.get(3).getCoinbase(), 0, owners.get(3), keyPair1, Block.COINBASE);
+    Transaction pending = TestFixtures.spend(prev.getCoinbase(), 0, prevOwner, keyPair1, Block.COINBASE);
+
+    BlockChain imported = new BlockChain(genesisBlock);
+    BlockChain added = new BlockChain(genesisBlock);
+    for(BlockChain blockChain : new BlockChain[] {imported, added}) {
+      BlockHandler blockHandler = new BlockHandler(blockChain);
+      blockHandler.processTx(mined);
+      blockHandler.processTx(conflicting);
+      blockHandler.processTx(pending);
+    }
+
+    if(imported.importBlocks(blocks) != blocks.size()) {
+      throw new RuntimeException("Some blocks were not imported");
+    }
+    for(Block block : blocks) {
+      if(!added.addBlock(block)) {
+        throw new RuntimeException("Unexpected failure");
+      }
+    }
+    checkSameState(imported, added, blocks);
+    if(imported.getTransactionPool().getTransaction(pending.getHash()) == null) {
+      throw new RuntimeException("A pending transaction was lost");
+    }
+    System.out.println("Case 1 is OK");
+  }
+
+  private static void case2() throws Exception {
+
+    // This case imports a chain while a fork of the same height waits as orphans for one of its
+    // blocks. Added one by one, the fork is connected right after its parent and becomes the max
+    // height block first, so it stays the max height block.
+
+    KeyPair keyPair1 = TestFixtures.generateNewKeyPair();
+
+    Block genesisBlock = new Block(null, keyPair1.getPublic());
+    genesisBlock.finalize();
+    ArrayList<Block> blocks = TestFixtures.chain(genesisBlock, 4);
+    ArrayList<Block> fork = TestFixtures.chain(blocks.get(1), 2);
+
+    BlockChain imported = new BlockChain(genesisBlock);
+    BlockChain added = new BlockChain(genesisBlock);
+    for(BlockChain blockChain : new BlockChain[] {imported, added}) {
+      for(Block block : fork) {
+        if(blockChain.addBlock(block) || !blockChain.isOrphan(block.getHash())) {
+          throw new RuntimeException("The fork should wait for its parent");
+        }
+      }
+    }
+
+    imported.importBlocks(blocks);
+    for(Block block : blocks) {
+      added.addBlock(block);
+    }
+    if(!Arrays.equals(added.getMaxHeightBlock().getHash(), fork.get(1).getHash())) {
+      throw new RuntimeException("Unexpected failure");
+    }
+    ArrayList<Block> all = new ArrayList<Block>(blocks);
+    all.addAll(fork);
+    checkSameState(imported, added, all);
+    System.out.println("Case 2 is OK");
+  }
+
+  private static void case3() throws Exception {
+
+    // This case imports blocks out of order, with a duplicate and an invalid block whose child
+    // comes first, and compares the result with adding the blocks one by one
+
+    KeyPair keyPair1 = TestFixtures.generateNewKeyPair();
+    KeyPair keyPair2 = TestFixtures.generateNewKeyPair();
+
+    Block genesisBlock = new Block(null, keyPair1.getPublic());
+    genesisBlock.finalize();
+    ArrayList<Block> blocks = TestFixtures.chain(genesisBlock, 2 * BlockChain.CUT_OFF_AGE);
+
+    Block invalid = new Block(blocks.get(4).getHash(), TestFixtures.generateNewKeyPair().getPublic());
+    invalid.addTransaction(TestFixtures.spend(genesisBlock.getCoinbase(), 0, keyPair2, keyPair2, Block.COINBASE));
+    invalid.finalize();
+    Block invalidChild = new Block(invalid.getHash(), TestFixtures.generateNewKeyPair().getPublic());
+    invalidChild.finalize();
+
+    ArrayList<Block> shuffled = new ArrayList<Block>(blocks);
+    shuffled.set(3, blocks.get(6));
+    shuffled.set(6, blocks.get(3));
+    shuffled.add(8, blocks.get(2));
+    shuffled.add(9, invalidChild);
+    shuffled.add(10, invalid);
+
+    BlockChain imported = new BlockChain(genesisBlock);
+    BlockChain added = new BlockChain(genesisBlock);
+    int numAdded = 0;
+    for(Block block : shuffled) {
+      if(added.addBlock(block)) {
+        numAdded++;
+      }
+    }
+    if(imported.importBlocks(shuffled) != numAdded) {
+      throw new RuntimeException("Different numbers of blocks were added");
+    }
+    shuffled.add(invalid);
+    checkSameState(imported, added, shuffled);
+    if(imported.isOrphan(invalidChild.getHash()) || imported.getHeight(invalidChild.getHash()) != -1) {
+      throw new RuntimeException("The child of an invalid block was kept");
+    }
+    System.out.println("Case 3 is OK");
+  }
+
+  private static void case4() throws Exception {
+
+    // This case imports a block on top of the max height block whose only input is signed with the
+    // wrong key, after a child of it. The block should be rejected having verified the signature
+    // once, and its child dropped, as when adding the blocks one by one.
+
+    KeyPair keyPair1 = TestFixtures.generateNewKeyPair();
+    KeyPair keyPair2 = TestFixtures.generateNewKeyPair();
+
+    Block genesisBlock = new Block(null, keyPair1.getPublic());
+    genesisBlock.finalize();
+    ArrayList<Block> blocks = TestFixtures.chain(genesisBlock, 3);
+
+    Block invalid = new Block(blocks.get(2).getHash(), TestFixtures.generateNewKeyPair().getPublic());
+    invalid.addTransaction(TestFixtures.spend(genesisBlock.getCoinbase(), 0, keyPair2, keyPair2, Block.COINBASE));
+    invalid.finalize();
+    Block invalidChild = new Block(invalid.getHash(), TestFixtures.generateNewKeyPair().getPublic());
+    invalidChild.finalize();
+    blocks.add(invalidChild);
+    blocks.add(invalid);
+
+    BlockChain imported = new BlockChain(genesisBlock);
+    BlockChain added = new BlockChain(genesisBlock);
+    int numAdded = 0;
+    for(Block block : blocks) {
+      if(added.addBlock(block)) {
+        numAdded++;
+      }
+    }
+    long misses = TxHandler.getSignatureCache().getMisses();
+    if(imported.importBlocks(blocks) != numAdded || numAdded != 3) {
+      throw new RuntimeException("Different numbers of blocks were added");
+    }
+    if(TxHandler.getSignatureCache().getMisses() != misses + 1) {
+      throw new RuntimeException("The invalid block was validated twice");
+    }
+    checkSameState(imported, added, blocks);
+    if(imported.isOrphan(invalidChild.getHash()) || imported.getHeight(invalidChild.getHash()) != -1) {
+      throw new RuntimeException("The child of an invalid block was kept");
+    }
+    System.out.println("Case 4 is OK");
+  }
+
+  // Checks that both blockchains have the same max height block, UTXO and transaction pools, and
+  // heights for blocks
+  private static void checkSameState(BlockChain blockChain1, BlockChain blockChain2, ArrayList<Block> blocks) {
+    if(!Arrays.equals(blockChain1.getMaxHeightBlock().getHash(), blockChain2.getMaxHeightBlock().getHash())) {
+      throw new RuntimeException("Different max height blocks");
+    }
+    if(!TestFixtures.samePool(blockChain1.getMaxHeightUTXOPool(), blockChain2.getMaxHeightUTXOPool())) {
+      throw new RuntimeException("Different UTXO pools");
+    }
+    HashSet<ByteArrayWrapper> txs1 = new HashSet<ByteArrayWrapper>();
+    for(Transaction tx : blockChain1.getTransactionPool().getTransactions()) {
+      txs1.add(new ByteArrayWrapper(tx.getHash()));
+    }
+    HashSet<ByteArrayWrapper> txs2 = new HashSet<ByteArrayWrapper>();
+    for(Transaction tx : blockChain2.getTransactionPool().getTransactions()) {
+      txs2.add(new ByteArrayWrapper(tx.getHash()));
+    }
+    if(!txs1.equals(txs2)) {
+      throw new RuntimeException("Different transaction pools");
+    }
+    for(Block block : blocks) {
+      if(blockChain1.getHeight(block.getHash()) != blockChain2.getHeight(block.getHash())) {
+        throw new RuntimeException("Different blocks kept");
+      }
+    }
+  }
+}
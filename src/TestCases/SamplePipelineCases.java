@@ -0,0 +1,175 @@
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class SamplePipelineCases {
+
+  // A single worker, so that the submitted blocks reach the blockchain in the order of submission
+  private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+  public static void main(String[] args) {
+
+    try {
+      case1();
+      case2();
+      case3();
+      case4();
+    }
+    catch(Exception e) {
+      e.printStackTrace();
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  private static void case1() throws Exception {
+
+    // This case submits a chain of blocks, each spending the coinbase of its parent, in reverse
+    // order. Each block should wait for its parent and all of them should be added.
+
+    KeyPair keyPair1 = TestFixtures.generateNewKeyPair();
+    Block genesisBlock = new Block(null, keyPair1.getPublic());
+    genesisBlock.finalize();
+    BlockChain blockChain = new BlockChain(genesisBlock);
+    BlockPipeline pipeline = new BlockPipeline(blockChain, executor);
+
+    ArrayList<Block> blocks = new ArrayList<Block>();
+    Block prev = genesisBlock;
+    KeyPair prevOwner = keyPair1;
+    for(int i = 0; i < 10; i++) {
+      KeyPair owner = TestFixtures.generateNewKeyPair();
+      Block block = new Block(prev.getHash(), owner.getPublic());
+      block.addTransaction(TestFixtures.spend(prev.getCoinbase(), 0, prevOwner, keyPair1, Block.COINBASE));
+      block.finalize();
+      blocks.add(block);
+      prev = block;
+      prevOwner = owner;
+    }
+
+    ArrayList<CompletableFuture<Boolean>> results = new ArrayList<CompletableFuture<Boolean>>();
+    for(int i = blocks.size() - 1; i >= 0; i--) {
+      results.add(pipeline.submit(blocks.get(i)));
+    }
+    for(CompletableFuture<Boolean> result : results) {
+      if(!result.get(10, TimeUnit.SECONDS)) {
+        throw new RuntimeException("A block was not added after its parent");
+      }
+    }
+    if(!Arrays.equals(blockChain.getMaxHeightBlock().getHash(), prev.getHash()) || pipeline.getOrphanCount() != 0) {
+      throw new RuntimeException("The blocks were not added in order");
+    }
+    System.out.println("Case 1 is OK");
+  }
+
+  private static void case2() throws Exception {
+
+    // This case submits one orphan more than the orphan pool of the blockchain holds. The oldest
+    // should be evicted and its future completed with false, while the others keep waiting.
+
+    KeyPair keyPair1 = TestFixtures.generateNewKeyPair();
+    Block genesisBlock = new Block(null, keyPair1.getPublic());
+    genesisBlock.finalize();
+    BlockChain blockChain = new BlockChain(genesisBlock);
+    BlockPipeline pipeline = new BlockPipeline(blockChain, executor);
+
+    Random random = new Random(1);
+    ArrayList<CompletableFuture<Boolean>> results = new ArrayList<CompletableFuture<Boolean>>();
+    for(int i = 0; i <= OrphanBlockPool.DEFAULT_MAX_ORPHANS; i++) {
+      byte[] unknownParent = new byte[32];
+      random.nextBytes(unknownParent);
+      Block block = new Block(unknownParent, keyPair1.getPublic());
+      block.finalize();
+      results.add(pipeline.submit(block));
+    }
+
+    if(results.get(0).get(10, TimeUnit.SECONDS)) {
+      throw new RuntimeException("An evicted orphan was added");
+    }
+    for(int i = 1; i < results.size(); i++) {
+      if(results.get(i).isDone()) {
+        throw new RuntimeException("A waiting orphan was completed");
+      }
+    }
+    if(pipeline.getOrphanCount() != OrphanBlockPool.DEFAULT_MAX_ORPHANS) {
+      throw new RuntimeException("Wrong number of waiting orphans");
+    }
+    System.out.println("Case 2 is OK");
+  }
+
+  private static void case3() throws Exception {
+
+    // This case submits two descendants of a block before the block itself, which spends an output
+    // that doesn't exist. The block should be rejected, and both descendants dropped with it.
+
+    KeyPair keyPair1 = TestFixtures.generateNewKeyPair();
+    KeyPair keyPair2 = TestFixtures.generateNewKeyPair();
+    Block genesisBlock = new Block(null, keyPair1.getPublic());
+    genesisBlock.finalize();
+    BlockChain blockChain = new BlockChain(genesisBlock);
+    BlockPipeline pipeline = new BlockPipeline(blockChain, executor);
+
+    Transaction unknownTx = TestFixtures.spend(genesisBlock.getCoinbase(), 0, keyPair1, keyPair2, Block.COINBASE);
+    Block invalid = new Block(genesisBlock.getHash(), keyPair2.getPublic());
+    invalid.addTransaction(TestFixtures.spend(unknownTx, 0, keyPair2, keyPair1, Block.COINBASE));
+    invalid.finalize();
+    Block child = new Block(invalid.getHash(), TestFixtures.generateNewKeyPair().getPublic());
+    child.finalize();
+    Block grandchild = new Block(child.getHash(), TestFixtures.generateNewKeyPair().getPublic());
+    grandchild.finalize();
+
+    CompletableFuture<Boolean> grandchildResult = pipeline.submit(grandchild);
+    CompletableFuture<Boolean> childResult = pipeline.submit(child);
+    CompletableFuture<Boolean> invalidResult = pipeline.submit(invalid);
+    if(invalidResult.get(10, TimeUnit.SECONDS) || childResult.get(10, TimeUnit.SECONDS)
+            || grandchildResult.get(10, TimeUnit.SECONDS)) {
+      throw new RuntimeException("A block on top of an invalid block was added");
+    }
+    if(pipeline.getOrphanCount() != 0 || blockChain.isOrphan(child.getHash()) || blockChain.isOrphan(grandchild.getHash())) {
+      throw new RuntimeException("The descendants of an invalid block were kept");
+    }
+    System.out.println("Case 3 is OK");
+  }
+
+  private static void case4() throws Exception {
+
+    // This case submits a block whose parent is then added to the blockchain directly. The orphan
+    // listener of the blockchain should be told, and the future of the block completed with true.
+
+    KeyPair keyPair1 = TestFixtures.generateNewKeyPair();
+    Block genesisBlock = new Block(null, keyPair1.getPublic());
+    genesisBlock.finalize();
+    BlockChain blockChain = new BlockChain(genesisBlock);
+    BlockPipeline pipeline = new BlockPipeline(blockChain, executor);
+    ArrayList<Block> resolved = new ArrayList<Block>();
+    blockChain.addOrphanListener((orphan, isAdded) -> {
+      if(isAdded) {
+        resolved.add(orphan);
+      }
+    });
+
+    Block parent = new Block(genesisBlock.getHash(), TestFixtures.generateNewKeyPair().getPublic());
+    parent.finalize();
+    Block child = new Block(parent.getHash(), TestFixtures.generateNewKeyPair().getPublic());
+    child.finalize();
+
+    CompletableFuture<Boolean> childResult = pipeline.submit(child);
+    // Waits for the worker to keep the child as an orphan
+    executor.submit(() -> null).get();
+    if(childResult.isDone() || !blockChain.isOrphan(child.getHash())) {
+      throw new RuntimeException("The block didn't wait for its parent");
+    }
+    if(!blockChain.addBlock(parent)) {
+      throw new RuntimeException("Unexpected failure");
+    }
+    if(!childResult.get(10, TimeUnit.SECONDS) || resolved.size() != 1 || resolved.get(0) != child) {
+      throw new RuntimeException("The orphan was not completed once its parent was added");
+    }
+    System.out.println("Case 4 is OK");
+  }
+}
@@ -0,0 +1,222 @@
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class SamplePoolCases {
+
+  public static void main(String[] args) {
+
+    try {
+      case1();
+      case2();
+      case3();
+      case4();
+      case5();
+    }
+    catch(Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  private static void case1() throws Exception {
+
+    // This case selects two of three transactions: a parent paying no fee, its child paying a high
+    // fee, and an unrelated transaction paying a lower fee than the child. The child should pull
+    // its parent in.
+
+    KeyPair keyPair1 = TestFixtures.generateNewKeyPair();
+    KeyPair keyPair2 = TestFixtures.generateNewKeyPair();
+
+    Transaction funding = new Transaction();
+    funding.addOutput(10, keyPair1.getPublic());
+    funding.addOutput(10, keyPair1.getPublic());
+    funding.finalize();
+    UTXOPool utxoPool = new UTXOPool();
+    for(int i = 0; i < funding.numOutputs(); i++) {
+      utxoPool.addUTXO(new UTXO(funding.getHash(), i), funding.getOutput(i));
+    }
+
+    Transaction parent = TestFixtures.spend(funding, 0, keyPair1, keyPair2, 10);
+    Transaction child = TestFixtures.spend(parent, 0, keyPair2, keyPair1, 5);
+    Transaction other = TestFixtures.spend(funding, 1, keyPair1, keyPair2, 9);
+    ArrayList<Transaction> txs = new ArrayList<Transaction>();
+    txs.add(other);
+    txs.add(child);
+    txs.add(parent);
+
+    ArrayList<Transaction> selected = PackageSelector.select(txs, utxoPool, 2, Long.MAX_VALUE);
+    if(selected.size() != 2 || selected.get(0) != parent || selected.get(1) != child) {
+      throw new RuntimeException("The child didn't pay for its parent");
+    }
+    System.out.println("Case 1 is OK");
+  }
+
+  private static void case2() throws Exception {
+
+    // This case adds a chain of transactions each spending the previous one, longer than the
+    // package limit. Only the transactions within the limit should be admitted to the pool, and
+    // selected from the whole chain.
+
+    KeyPair keyPair1 = TestFixtures.generateNewKeyPair();
+
+    Block genesisBlock = new Block(null, keyPair1.getPublic());
+    genesisBlock.finalize();
+    BlockChain blockChain = new BlockChain(genesisBlock);
+    BlockHandler blockHandler = new BlockHandler(blockChain);
+
+    ArrayList<Transaction> chain = new ArrayList<Transaction>();
+    Transaction prev = genesisBlock.getCoinbase();
+    for(int i = 0; i < PackageSelector.MAX_PACKAGE_TXS + 5; i++) {
+      prev = TestFixtures.spend(prev, 0, keyPair1, keyPair1, Block.COINBASE);
+      chain.add(prev);
+      blockHandler.processTx(prev);
+    }
+    if(blockChain.getTransactionPool().size() != PackageSelector.MAX_PACKAGE_TXS
+            || blockChain.getTransactionPool().getTransaction(chain.get(PackageSelector.MAX_PACKAGE_TXS - 1).getHash()) == null) {
+      throw new RuntimeException("The package limit wasn't enforced by the pool");
+    }
+
+    Collections.reverse(chain);
+    ArrayList<Transaction> selected = PackageSelector.select(chain, blockChain.getMaxHeightUTXOPool(), Integer.MAX_VALUE, Long.MAX_VALUE);
+    Collections.reverse(chain);
+    if(!selected.equals(chain.subList(0, PackageSelector.MAX_PACKAGE_TXS))) {
+      throw new RuntimeException("The package limit wasn't enforced by the selector");
+    }
+
+    Block block = blockHandler.createBlock(keyPair1.getPublic());
+    if(block == null || block.getTransactions().size() != PackageSelector.MAX_PACKAGE_TXS) {
+      throw new RuntimeException("The created block doesn't hold the admitted chain");
+    }
+    System.out.println("Case 2 is OK");
+  }
+
+  private static void case3() throws Exception {
+
+    // This case adds a transaction spending an output that a block already spent. It should be
+    // rejected rather than wait in the orphan pool for a parent that is already confirmed.
+
+    KeyPair keyPair1 = TestFixtures.generateNewKeyPair();
+    KeyPair keyPair2 = TestFixtures.generateNewKeyPair();
+
+    Block genesisBlock = new Block(null, keyPair1.getPublic());
+    genesisBlock.finalize();
+    BlockChain blockChain = new BlockChain(genesisBlock);
+    BlockHandler blockHandler = new BlockHandler(blockChain);
+
+    Transaction tx = TestFixtures.spend(genesisBlock.getCoinbase(), 0, keyPair1, keyPair2, Block.COINBASE);
+    Block block = new Block(genesisBlock.getHash(), keyPair2.getPublic());
+    block.addTransaction(tx);
+    block.finalize();
+    if(!blockHandler.processBlock(block)) {
+      throw new RuntimeException("Unexpected failure");
+    }
+
+    Transaction doubleSpend = TestFixtures.spend(genesisBlock.getCoinbase(), 0, keyPair1, keyPair1, Block.COINBASE);
+    blockHandler.processTx(doubleSpend);
+    if(blockChain.getTransactionPool().getTransaction(doubleSpend.getHash()) != null
+            || blockChain.isOrphanTransaction(doubleSpend.getHash())) {
+      throw new RuntimeException("A spend of a spent confirmed output was kept");
+    }
+    System.out.println("Case 3 is OK");
+  }
+
+  private static void case4() throws Exception {
+
+    // This case switches to a fork that contains a transaction of the old branch and another one
+    // conflicting with it. The shared transaction should stay confirmed, and the conflicting one
+    // and its child should be dropped, neither going back to the pool nor waiting as orphans.
+
+    KeyPair keyPair1 = TestFixtures.generateNewKeyPair();
+    KeyPair keyPair2 = TestFixtures.generateNewKeyPair();
+
+    Block genesisBlock = new Block(null, keyPair1.getPublic());
+    genesisBlock.finalize();
+    BlockChain blockChain = new BlockChain(genesisBlock);
+    BlockHandler blockHandler = new BlockHandler(blockChain);
+
+    Transaction shared = TestFixtures.spend(genesisBlock.getCoinbase(), 0, keyPair1, keyPair2, Block.COINBASE);
+    Transaction conflicting = TestFixtures.spend(shared, 0, keyPair2, keyPair1, Block.COINBASE);
+    Transaction child = TestFixtures.spend(conflicting, 0, keyPair1, keyPair2, Block.COINBASE);
+    Transaction winning = TestFixtures.spend(shared, 0, keyPair2, keyPair2, Block.COINBASE);
+
+    Block block = new Block(genesisBlock.getHash(), TestFixtures.generateNewKeyPair().getPublic());
+    block.addTransaction(shared);
+    block.addTransaction(conflicting);
+    block.addTransaction(child);
+    block.finalize();
+    Block fork1 = new Block(genesisBlock.getHash(), TestFixtures.generateNewKeyPair().getPublic());
+    fork1.addTransaction(shared);
+    fork1.addTransaction(winning);
+    fork1.finalize();
+    Block fork2 = new Block(fork1.getHash(), TestFixtures.generateNewKeyPair().getPublic());
+    fork2.finalize();
+    if(!blockHandler.processBlock(block) || !blockHandler.processBlock(fork1) || !blockHandler.processBlock(fork2)) {
+      throw new RuntimeException("Unexpected failure");
+    }
+    if(!Arrays.equals(blockChain.getMaxHeightBlock().getHash(), fork2.getHash())) {
+      throw new RuntimeException("The blockchain didn't switch to the fork");
+    }
+
+    for(Transaction tx : new Transaction[] {shared, conflicting, child}) {
+      if(blockChain.getTransactionPool().getTransaction(tx.getHash()) != null || blockChain.isOrphanTransaction(tx.getHash())) {
+        throw new RuntimeException("A transaction of the old branch was kept");
+      }
+    }
+    System.out.println("Case 4 is OK");
+  }
+
+  private static void case5() throws Exception {
+
+    // This case fills a pool bounded by its number of transactions with a parent paying the lowest
+    // fee, its child and grandchild, and an unrelated transaction. One more transaction should
+    // evict the parent together with its descendants. Then a pool bounded by its bytes should
+    // evict its transaction with the lowest fee rate.
+
+    KeyPair keyPair1 = TestFixtures.generateNewKeyPair();
+    KeyPair keyPair2 = TestFixtures.generateNewKeyPair();
+
+    Transaction funding = new Transaction();
+    for(int i = 0; i < 4; i++) {
+      funding.addOutput(10, keyPair1.getPublic());
+    }
+    funding.finalize();
+    UTXOPool utxoPool = new UTXOPool();
+    for(int i = 0; i < funding.numOutputs(); i++) {
+      utxoPool.addUTXO(new UTXO(funding.getHash(), i), funding.getOutput(i));
+    }
+
+    Transaction parent = TestFixtures.spend(funding, 0, keyPair1, keyPair2, 9.9);
+    Transaction child = TestFixtures.spend(parent, 0, keyPair2, keyPair1, 5);
+    Transaction grandchild = TestFixtures.spend(child, 0, keyPair1, keyPair2, 1);
+    Transaction other1 = TestFixtures.spend(funding, 1, keyPair1, keyPair2, 8);
+    Transaction other2 = TestFixtures.spend(funding, 2, keyPair1, keyPair2, 7);
+
+    TransactionPool txPool = new TransactionPool(4, TransactionPool.DEFAULT_MAX_BYTES);
+    for(Transaction tx : new Transaction[] {parent, child, grandchild, other1}) {
+      txPool.addTransaction(tx, utxoPool);
+    }
+    if(txPool.size() != 4 || txPool.getTransactions().get(0) != child || txPool.getTransactions().get(3) != parent) {
+      throw new RuntimeException("The pool isn't ordered by fee rate");
+    }
+
+    txPool.addTransaction(other2, utxoPool);
+    if(txPool.size() != 2 || txPool.getTransaction(other1.getHash()) == null || txPool.getTransaction(other2.getHash()) == null
+            || txPool.getSpendingTransaction(new UTXO(parent.getHash(), 0)) != null
+            || txPool.getBytes() != other1.getRawTxSize() + other2.getRawTxSize()) {
+      throw new RuntimeException("The parent wasn't evicted with its descendants");
+    }
+
+    Transaction other3 = TestFixtures.spend(funding, 3, keyPair1, keyPair2, 6);
+    TransactionPool boundedPool = new TransactionPool(TransactionPool.DEFAULT_MAX_TRANSACTIONS,
+            other1.getRawTxSize() + other2.getRawTxSize());
+    for(Transaction tx : new Transaction[] {other1, other2, other3}) {
+      boundedPool.addTransaction(tx, utxoPool);
+    }
+    if(boundedPool.size() != 2 || boundedPool.getTransaction(other1.getHash()) != null
+            || boundedPool.getBytes() > other1.getRawTxSize() + other2.getRawTxSize()) {
+      throw new RuntimeException("The pool grew past its bytes");
+    }
+    System.out.println("Case 5 is OK");
+  }
+}
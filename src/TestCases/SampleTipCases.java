@@ -0,0 +1,108 @@
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SampleTipCases {
+
+  public static void main(String[] args) {
+
+    try {
+      case1();
+      case2();
+    }
+    catch(Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  private static void case1() throws Exception {
+
+    // This case reads the tip on other threads while blocks spending each other's coinbases are
+    // added. Each tip read should be a block at its own height, with a UTXO pool holding its
+    // coinbase and not the coinbase its child spends, and the heights read should never go down.
+
+    KeyPair keyPair1 = TestFixtures.generateNewKeyPair();
+    Block genesisBlock = new Block(null, keyPair1.getPublic());
+    genesisBlock.finalize();
+    BlockChain blockChain = new BlockChain(genesisBlock);
+
+    HashMap<HashWrapper, Integer> heights = new HashMap<HashWrapper, Integer>();
+    heights.put(new HashWrapper(genesisBlock.getHash()), 1);
+    ArrayList<Block> blocks = new ArrayList<Block>();
+    Block prev = genesisBlock;
+    KeyPair prevOwner = keyPair1;
+    for(int i = 0; i < 2 * BlockChain.CUT_OFF_AGE; i++) {
+      KeyPair owner = TestFixtures.generateNewKeyPair();
+      Block block = new Block(prev.getHash(), owner.getPublic());
+      block.addTransaction(TestFixtures.spend(prev.getCoinbase(), 0, prevOwner, keyPair1, Block.COINBASE));
+      block.finalize();
+      blocks.add(block);
+      heights.put(new HashWrapper(block.getHash()), i + 2);
+      prev = block;
+      prevOwner = owner;
+    }
+    Block last = prev;
+
+    AtomicReference<String> failure = new AtomicReference<String>();
+    Thread[] readers = new Thread[4];
+    for(int i = 0; i < readers.length; i++) {
+      readers[i] = new Thread(() -> {
+        int lastHeight = 0;
+        while(failure.get() == null) {
+          BlockChain.Tip tip = blockChain.getTip();
+          Block block = tip.getBlock();
+          Integer height = heights.get(new HashWrapper(block.getHash()));
+          UTXOPool utxoPool = tip.getUTXOPool();
+          if(height == null || height != tip.getHeight() || tip.getHeight() < lastHeight
+                  || !utxoPool.contains(new UTXO(block.getCoinbase().getHash(), 0))) {
+            failure.set("An inconsistent tip was read at height " + tip.getHeight());
+          }
+          if(!block.getTransactions().isEmpty()
+                  && utxoPool.contains(new UTXO(block.getTransaction(0).getInput(0).prevTxHash, 0))) {
+            failure.set("The tip was read with the UTXO pool of its parent");
+          }
+          lastHeight = tip.getHeight();
+          if(block == last) {
+            return;
+          }
+        }
+      });
+      readers[i].start();
+    }
+
+    for(Block block : blocks) {
+      if(!blockChain.addBlock(block)) {
+        failure.compareAndSet(null, "Unexpected failure");
+      }
+    }
+    for(Thread reader : readers) {
+      reader.join(10000);
+    }
+    if(failure.get() != null) {
+      throw new RuntimeException(failure.get());
+    }
+    System.out.println("Case 1 is OK");
+  }
+
+  private static void case2() throws Exception {
+
+    // This case reads the tip on another thread while the lock of the blockchain is held, as it is
+    // while a block is added. The read shouldn't wait for the lock.
+
+    Block genesisBlock = new Block(null, TestFixtures.generateNewKeyPair().getPublic());
+    genesisBlock.finalize();
+    BlockChain blockChain = new BlockChain(genesisBlock);
+
+    AtomicReference<BlockChain.Tip> read = new AtomicReference<BlockChain.Tip>();
+    Thread reader = new Thread(() -> read.set(blockChain.getTip()));
+    synchronized(blockChain) {
+      reader.start();
+      reader.join(10000);
+    }
+    if(read.get() == null || read.get().getBlock() != genesisBlock) {
+      throw new RuntimeException("Reading the tip waited for the lock of the blockchain");
+    }
+    System.out.println("Case 2 is OK");
+  }
+}
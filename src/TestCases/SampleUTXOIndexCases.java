@@ -0,0 +1,144 @@
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+public class SampleUTXOIndexCases {
+
+  public static void main(String[] args) {
+
+    try {
+      case1();
+      case2();
+      case3();
+    }
+    catch(Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  private static void case1() throws Exception {
+
+    // This case puts and removes random UTXOs in an index that starts small, so that it grows and
+    // shifts entries back on removal, and in a map. Both should always hold the same outputs.
+
+    Transaction.Output[] outputs = outputs();
+    Random random = new Random(1);
+    ArrayList<UTXO> utxos = new ArrayList<UTXO>();
+    for(int i = 0; i < 3000; i++) {
+      byte[] hash = new byte[PackedUTXOIndex.HASH_LENGTH];
+      random.nextBytes(hash);
+      utxos.add(new UTXO(hash, random.nextInt(4)));
+    }
+
+    PackedUTXOIndex index = new PackedUTXOIndex(4);
+    HashMap<UTXO, Transaction.Output> map = new HashMap<UTXO, Transaction.Output>();
+    for(int i = 0; i < 20000; i++) {
+      UTXO utxo = utxos.get(random.nextInt(utxos.size()));
+      if(random.nextInt(3) == 0) {
+        if(index.remove(utxo) != (map.remove(utxo) != null)) {
+          throw new RuntimeException("Removed a UTXO that wasn't there");
+        }
+      } else {
+        Transaction.Output output = outputs[random.nextInt(outputs.length)];
+        index.put(utxo, output);
+        map.put(utxo, output);
+      }
+    }
+
+    if(index.size() != map.size()) {
+      throw new RuntimeException("Wrong size");
+    }
+    for(UTXO utxo : utxos) {
+      Transaction.Output output = index.get(utxo, null);
+      if(map.containsKey(utxo) ? !map.get(utxo).equals(output) : output != null) {
+        throw new RuntimeException("Wrong output");
+      }
+    }
+    HashMap<UTXO, Transaction.Output> all = new HashMap<UTXO, Transaction.Output>();
+    index.forEach(all::put);
+    if(!all.equals(map)) {
+      throw new RuntimeException("forEach didn't pass the UTXOs of the index");
+    }
+    System.out.println("Case 1 is OK");
+  }
+
+  private static void case2() throws Exception {
+
+    // This case puts UTXOs that can't be packed, with short hashes or null outputs, and copies the
+    // index. The copy should hold them too, and changes to either index shouldn't show in the other.
+
+    Transaction.Output[] outputs = outputs();
+    UTXO shortHash = new UTXO(new byte[] {1, 2, 3}, 0);
+    UTXO nullOutput = new UTXO(new byte[PackedUTXOIndex.HASH_LENGTH], 1);
+    UTXO packed = new UTXO(new byte[PackedUTXOIndex.HASH_LENGTH], 2);
+
+    PackedUTXOIndex index = new PackedUTXOIndex(16);
+    index.put(shortHash, outputs[0]);
+    index.put(nullOutput, null);
+    index.put(packed, outputs[1]);
+    PackedUTXOIndex copy = new PackedUTXOIndex(index);
+    copy.remove(packed);
+    copy.put(shortHash, outputs[2]);
+
+    if(index.size() != 3 || !outputs[0].equals(index.get(shortHash, null)) || index.get(nullOutput, outputs[0]) != null
+            || !outputs[1].equals(index.get(packed, null))) {
+      throw new RuntimeException("The index lost a UTXO");
+    }
+    if(copy.size() != 2 || !outputs[2].equals(copy.get(shortHash, null)) || copy.get(packed, null) != null) {
+      throw new RuntimeException("The copy isn't independent of the index");
+    }
+    System.out.println("Case 2 is OK");
+  }
+
+  private static void case3() throws Exception {
+
+    // This case makes the same changes to a packed and an unpacked UTXOPool, copying each after
+    // every round of changes. Each copy should hold the same UTXOs as its unpacked twin.
+
+    Transaction.Output[] outputs = outputs();
+    Random random = new Random(2);
+    UTXOPool packedPool = new UTXOPool(true);
+    UTXOPool plainPool = new UTXOPool();
+    ArrayList<UTXO> utxos = new ArrayList<UTXO>();
+    for(int round = 0; round < 20; round++) {
+      for(int i = 0; i < 200; i++) {
+        if(!utxos.isEmpty() && random.nextInt(3) == 0) {
+          UTXO utxo = utxos.remove(random.nextInt(utxos.size()));
+          packedPool.removeUTXO(utxo);
+          plainPool.removeUTXO(utxo);
+        } else {
+          byte[] hash = new byte[PackedUTXOIndex.HASH_LENGTH];
+          random.nextBytes(hash);
+          UTXO utxo = new UTXO(hash, i);
+          Transaction.Output output = outputs[random.nextInt(outputs.length)];
+          utxos.add(utxo);
+          packedPool.addUTXO(utxo, output);
+          plainPool.addUTXO(utxo, output);
+        }
+      }
+      packedPool = new UTXOPool(packedPool);
+      plainPool = new UTXOPool(plainPool);
+      if(!TestFixtures.samePool(packedPool, plainPool)) {
+        throw new RuntimeException("The packed pool differs from the unpacked one");
+      }
+    }
+    System.out.println("Case 3 is OK");
+  }
+
+  // Outputs of various values to a few keys, and one without an address
+  private static Transaction.Output[] outputs() throws Exception {
+    Transaction tx = new Transaction();
+    for(int i = 0; i < 3; i++) {
+      KeyPair keyPair = TestFixtures.generateNewKeyPair();
+      tx.addOutput(i + 0.5, keyPair.getPublic());
+      tx.addOutput(i + 1.25, keyPair.getPublic());
+    }
+    tx.addOutput(7, null);
+    Transaction.Output[] outputs = new Transaction.Output[tx.numOutputs()];
+    for(int i = 0; i < outputs.length; i++) {
+      outputs[i] = tx.getOutput(i);
+    }
+    return outputs;
+  }
+}
@@ -0,0 +1,153 @@
+import java.security.KeyPair;
+
+public class SampleUndoCases {
+
+  public static void main(String[] args) {
+
+    try {
+      case1();
+      case2();
+      case3();
+    }
+    catch(Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  private static void case1() throws Exception {
+
+    // This case processes a block listing a child before its parent, and then a block spending the
+    // output of the parent again
+
+    KeyPair keyPair1 = TestFixtures.generateNewKeyPair();
+    KeyPair keyPair2 = TestFixtures.generateNewKeyPair();
+
+    Block genesisBlock = new Block(null, keyPair1.getPublic());
+    genesisBlock.finalize();
+    BlockChain blockChain = new BlockChain(genesisBlock);
+    BlockHandler blockHandler = new BlockHandler(blockChain);
+
+    Transaction parent = TestFixtures.spend(genesisBlock.getCoinbase(), 0, keyPair1, keyPair2, Block.COINBASE);
+    Transaction child = TestFixtures.spend(parent, 0, keyPair2, keyPair1, Block.COINBASE);
+
+    Block block = new Block(genesisBlock.getHash(), keyPair1.getPublic());
+    block.addTransaction(child);
+    block.addTransaction(parent);
+    block.finalize();
+    if(!blockHandler.processBlock(block)) {
+      throw new RuntimeException("Unexpected failure");
+    }
+    if(blockChain.getMaxHeightUTXOPool().contains(new UTXO(parent.getHash(), 0))) {
+      throw new RuntimeException("The output spent by the child is still unspent");
+    }
+
+    Block doubleSpend = new Block(block.getHash(), keyPair2.getPublic());
+    doubleSpend.addTransaction(TestFixtures.spend(parent, 0, keyPair2, keyPair2, Block.COINBASE));
+    doubleSpend.finalize();
+    if(blockHandler.processBlock(doubleSpend)) {
+      throw new RuntimeException("A block spending an output twice should have failed");
+    }
+    System.out.println("Case 1 is OK");
+  }
+
+  private static void case2() throws Exception {
+
+    // This case mines a block whose template lists a high fee child before its parent, and then
+    // processes a block spending the output of the parent again
+
+    KeyPair keyPair1 = TestFixtures.generateNewKeyPair();
+    KeyPair keyPair2 = TestFixtures.generateNewKeyPair();
+
+    Block genesisBlock = new Block(null, keyPair1.getPublic());
+    genesisBlock.finalize();
+    BlockChain blockChain = new BlockChain(genesisBlock);
+    BlockHandler blockHandler = new BlockHandler(blockChain);
+
+    Transaction parent = TestFixtures.spend(genesisBlock.getCoinbase(), 0, keyPair1, keyPair2, Block.COINBASE);
+    Transaction child = TestFixtures.spend(parent, 0, keyPair2, keyPair1, Block.COINBASE - 5);
+    blockHandler.processTx(parent);
+    blockHandler.processTx(child);
+
+    Block block = blockHandler.createBlock(keyPair1.getPublic());
+    if(block == null || block.getTransactions().size() != 2) {
+      throw new RuntimeException("Unexpected failure");
+    }
+    if(blockChain.getMaxHeightUTXOPool().contains(new UTXO(parent.getHash(), 0))) {
+      throw new RuntimeException("The output spent by the child is still unspent");
+    }
+
+    Block doubleSpend = new Block(block.getHash(), keyPair2.getPublic());
+    doubleSpend.addTransaction(TestFixtures.spend(parent, 0, keyPair2, keyPair2, Block.COINBASE));
+    doubleSpend.finalize();
+    if(blockHandler.processBlock(doubleSpend)) {
+      throw new RuntimeException("A block spending an output twice should have failed");
+    }
+    System.out.println("Case 2 is OK");
+  }
+
+  private static void case3() throws Exception {
+
+    // This case switches the max height block from one branch to a longer one and back. Each time,
+    // the UTXO pool should be the one of a blockchain that only saw the winning branch, and the
+    // transactions of the abandoned branch should be back in the transaction pool.
+
+    KeyPair keyPair1 = TestFixtures.generateNewKeyPair();
+    KeyPair keyPair2 = TestFixtures.generateNewKeyPair();
+
+    Block genesisBlock = new Block(null, keyPair1.getPublic());
+    genesisBlock.finalize();
+    BlockChain blockChain = new BlockChain(genesisBlock);
+
+    Transaction txA = TestFixtures.spend(genesisBlock.getCoinbase(), 0, keyPair1, keyPair2, Block.COINBASE);
+    Block[] branchA = new Block[3];
+    branchA[0] = new Block(genesisBlock.getHash(), TestFixtures.generateNewKeyPair().getPublic());
+    branchA[0].addTransaction(txA);
+    branchA[0].finalize();
+    for(int i = 1; i < branchA.length; i++) {
+      branchA[i] = new Block(branchA[i - 1].getHash(), TestFixtures.generateNewKeyPair().getPublic());
+      branchA[i].finalize();
+    }
+
+    Transaction txB = TestFixtures.spend(genesisBlock.getCoinbase(), 0, keyPair1, keyPair1, Block.COINBASE);
+    Block[] branchB = new Block[4];
+    branchB[0] = new Block(genesisBlock.getHash(), TestFixtures.generateNewKeyPair().getPublic());
+    branchB[0].addTransaction(txB);
+    branchB[0].finalize();
+    for(int i = 1; i < branchB.length; i++) {
+      branchB[i] = new Block(branchB[i - 1].getHash(), TestFixtures.generateNewKeyPair().getPublic());
+      branchB[i].finalize();
+    }
+
+    BlockChain onlyA = new BlockChain(genesisBlock);
+    BlockChain onlyB = new BlockChain(genesisBlock);
+    for(Block block : branchA) {
+      if(!blockChain.addBlock(block) || !onlyA.addBlock(block)) {
+        throw new RuntimeException("Unexpected failure");
+      }
+    }
+    for(Block block : branchB) {
+      if(!blockChain.addBlock(block) || !onlyB.addBlock(block)) {
+        throw new RuntimeException("Unexpected failure");
+      }
+    }
+    if(blockChain.getMaxHeightBlock() != branchB[3] || !TestFixtures.samePool(blockChain.getMaxHeightUTXOPool(), onlyB.getMaxHeightUTXOPool())) {
+      throw new RuntimeException("Reorganization to branch B failed");
+    }
+    if(blockChain.getTransactionPool().getTransaction(txA.getHash()) != null) {
+      throw new RuntimeException("A transaction conflicting with branch B is still in the pool");
+    }
+
+    // Branch A overtakes branch B again
+    for(int i = 0; i < 2; i++) {
+      Block block = new Block(onlyA.getMaxHeightBlock().getHash(), TestFixtures.generateNewKeyPair().getPublic());
+      block.finalize();
+      if(!blockChain.addBlock(block) || !onlyA.addBlock(block)) {
+        throw new RuntimeException("Unexpected failure");
+      }
+    }
+    if(!TestFixtures.samePool(blockChain.getMaxHeightUTXOPool(), onlyA.getMaxHeightUTXOPool())) {
+      throw new RuntimeException("Reorganization back to branch A failed");
+    }
+    System.out.println("Case 3 is OK");
+  }
+}
@@ -0,0 +1,66 @@
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+// The keys, transactions, blocks and checks shared by the sample cases
+class TestFixtures {
+
+  // Creates a transaction paying value of output outputIndex of prevTx, owned by owner, to recipient
+  static Transaction spend(Transaction prevTx, int outputIndex, KeyPair owner, KeyPair recipient, double value)
+          throws Exception {
+    Transaction tx = new Transaction();
+    tx.addInput(prevTx.getHash(), outputIndex);
+    tx.addOutput(value, recipient.getPublic());
+    tx.addSignature(sign(owner.getPrivate(), tx.getRawDataToSign(0)), 0);
+    tx.finalize();
+    return tx;
+  }
+
+  // Creates numBlocks empty blocks on top of prev, each paying its coinbase to a new key
+  static ArrayList<Block> chain(Block prev, int numBlocks) throws Exception {
+    ArrayList<Block> blocks = new ArrayList<Block>();
+    for(int i = 0; i < numBlocks; i++) {
+      Block block = new Block(prev.getHash(), generateNewKeyPair().getPublic());
+      block.finalize();
+      blocks.add(block);
+      prev = block;
+    }
+    return blocks;
+  }
+
+  // Whether pool1 and pool2 hold the same UTXOs with the same outputs
+  static boolean samePool(UTXOPool pool1, UTXOPool pool2) {
+    HashSet<UTXO> utxos = new HashSet<UTXO>(pool1.getAllUTXO());
+    if(!utxos.equals(new HashSet<UTXO>(pool2.getAllUTXO()))) {
+      return false;
+    }
+    for(UTXO utxo : utxos) {
+      if(!pool1.getTxOutput(utxo).equals(pool2.getTxOutput(utxo))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static KeyPair generateNewKeyPair() throws NoSuchAlgorithmException, NoSuchProviderException {
+    KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+    keyGen.initialize(1024); // Warning: This is a small value for testing. 1024-bit RSA keys do not provide the recommended security level.
+    return keyGen.genKeyPair();
+  }
+
+  static byte[] sign(PrivateKey privKey, byte[] message)
+          throws NoSuchAlgorithmException, SignatureException,
+          InvalidKeyException {
+    Signature signature = Signature.getInstance("SHA256withRSA");
+    signature.initSign(privKey);
+    signature.update(message);
+    return signature.sign();
+  }
+}
@@ -3,7 +3,6 @@ import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -74,11 +73,52 @@ public class Transaction {
         /** the address or public key of the recipient */
         public PublicKey address;
 
+        // The forms of {@code address} computed once, with its id in the registry it was last
+        // looked up in, looked up again if it is replaced
+        private KeyId keyId;
+
         public Output(double v, PublicKey addr) {
             value = v;
             address = addr;
         }
 
+        // Creates an output to the key with id id in keyRegistry
+        Output(double v, KeyRegistry keyRegistry, int id) {
+            value = v;
+            address = keyRegistry.getKey(id);
+            keyId = new KeyId(address, keyRegistry, id);
+        }
+
+        /**
+         * @return the id of {@code address} in {@code keyRegistry}, registering it if it is new, or
+         *         -1 if it is null. Only outputs connected to the blockchain should be registered.
+         */
+        int getKeyId(KeyRegistry keyRegistry) {
+            KeyId id = keyId;
+            if (id == null || id.address != address || id.keyRegistry != keyRegistry) {
+                id = new KeyId(address, keyRegistry);
+                keyId = id;
+            }
+            return id.id;
+        }
+
+        /** @return the public exponent followed by the modulus of {@code address}, as in the raw tx */
+        private byte[] getRawAddress() {
+            if (address == null)
+                throw new NullPointerException("output without address");
+            return getCurrentKeyId().rawBytes;
+        }
+
+        // Returns the forms of address, computing them without a registry if it was replaced
+        private KeyId getCurrentKeyId() {
+            KeyId id = keyId;
+            if (id == null || id.address != address) {
+                id = new KeyId(address, null);
+                keyId = id;
+            }
+            return id;
+        }
+
         public boolean equals(Object other) {
             if (other == null) {
                 return false;
@@ -91,24 +131,56 @@ public class Transaction {
 
             if (value != op.value)
                 return false;
-            if (!((RSAPublicKey) address).getPublicExponent().equals(
-                    ((RSAPublicKey) op.address).getPublicExponent()))
+            if (address == op.address)
+                return true;
+            if (address == null || op.address == null)
                 return false;
-            if (!((RSAPublicKey) address).getModulus().equals(
-                    ((RSAPublicKey) op.address).getModulus()))
-                return false;
-            return true;
+            // The hash codes cached by both outputs tell most different keys apart without comparing
+            // their encodings
+            return getCurrentKeyId().hashCode == op.getCurrentKeyId().hashCode && address.equals(op.address);
         }
 
         public int hashCode() {
             int hash = 1;
             hash = hash * 17 + (int) value * 10000;
-            hash = hash * 31 + ((RSAPublicKey) address).getPublicExponent().hashCode();
-            hash = hash * 31 + ((RSAPublicKey) address).getModulus().hashCode();
+            if (address != null)
+                hash = hash * 31 + getCurrentKeyId().hashCode;
             return hash;
         }
     }
 
+    // An address with its raw bytes, its hash code and its id in a registry, or -1 if it wasn't
+    // looked up in one, published as one immutable object so that threads sharing an Output never
+    // see the forms of another address
+    private static class KeyId {
+        private final PublicKey address;
+        private final KeyRegistry keyRegistry;
+        private final int id;
+        private final byte[] rawBytes;
+        private final int hashCode;
+
+        // Registers address in keyRegistry, unless either is null
+        private KeyId(PublicKey address, KeyRegistry keyRegistry) {
+            this(address, keyRegistry, address == null || keyRegistry == null ? -1 : keyRegistry.getId(address));
+        }
+
+        private KeyId(PublicKey address, KeyRegistry keyRegistry, int id) {
+            this.address = address;
+            this.keyRegistry = keyRegistry;
+            this.id = id;
+            if (address == null) {
+                rawBytes = null;
+                hashCode = 0;
+            } else if (id < 0) {
+                rawBytes = KeyRegistry.getRawBytes(address);
+                hashCode = address.hashCode();
+            } else {
+                rawBytes = keyRegistry.getRawBytes(id);
+                hashCode = keyRegistry.getHashCode(id);
+            }
+        }
+    }
+
     /** hash of the transaction, its unique id */
     private byte[] hash;
     private ArrayList<Input> inputs;
@@ -128,6 +200,13 @@ public class Transaction {
         coinbase = false;
     }
 
+    // Creates an empty transaction to be filled in by a decoder, which then sets its known hash
+    Transaction(boolean coinbase) {
+        inputs = new ArrayList<Input>();
+        outputs = new ArrayList<Output>();
+        this.coinbase = coinbase;
+    }
+
     /** create a coinbase transaction of value {@code coin} and calls finalize on it */
     public Transaction(double coin, PublicKey address) {
         coinbase = true;
@@ -168,78 +247,78 @@ public class Transaction {
 
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
-        Input in = inputs.get(index);
-        byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-        if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                sigData.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                sigData.add(addressModulus[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
+        byte[] sigD = new byte[getRawDataToSignSize(index)];
+        writeRawDataToSign(index, ByteBuffer.wrap(sigD));
         return sigD;
     }
 
+    /** @return the length of {@code getRawDataToSign(index)} */
+    public int getRawDataToSignSize(int index) {
+        Input in = inputs.get(index);
+        int size = Integer.SIZE / 8 + getRawOutputsSize();
+        if (in.prevTxHash != null)
+            size += in.prevTxHash.length;
+        return size;
+    }
+
+    /** Writes {@code getRawDataToSign(index)} into {@code buffer} at its current position */
+    public void writeRawDataToSign(int index, ByteBuffer buffer) {
+        Input in = inputs.get(index);
+        if (in.prevTxHash != null)
+            buffer.put(in.prevTxHash);
+        buffer.putInt(in.outputIndex);
+        writeRawOutputs(buffer);
+    }
+
     public void addSignature(byte[] signature, int index) {
         inputs.get(index).addSignature(signature);
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        byte[] tx = new byte[getRawTxSize()];
+        writeRawTx(ByteBuffer.wrap(tx));
+        return tx;
+    }
+
+    /** @return the length of {@code getRawTx()} */
+    public int getRawTxSize() {
+        int size = getRawOutputsSize();
+        for (Input in : inputs) {
+            size += Integer.SIZE / 8;
+            if (in.prevTxHash != null)
+                size += in.prevTxHash.length;
+            if (in.signature != null)
+                size += in.signature.length;
+        }
+        return size;
+    }
+
+    /** Writes {@code getRawTx()} into {@code buffer} at its current position */
+    public void writeRawTx(ByteBuffer buffer) {
         for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
+            if (in.prevTxHash != null)
+                buffer.put(in.prevTxHash);
+            buffer.putInt(in.outputIndex);
+            if (in.signature != null)
+                buffer.put(in.signature);
         }
+        writeRawOutputs(buffer);
+    }
+
+    private int getRawOutputsSize() {
+        int size = 0;
+        for (Output op : outputs)
+            size += Double.SIZE / 8 + op.getRawAddress().length;
+        return size;
+    }
+
+    private void writeRawOutputs(ByteBuffer buffer) {
         for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                rawTx.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                rawTx.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                rawTx.add(addressModulus[i]);
+            buffer.putDouble(op.value);
+            buffer.put(op.getRawAddress());
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
     }
 
     public void finalize() {
@@ -1,38 +1,230 @@
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeSet;
 
+/**
+ * The pool of transactions waiting to be mined, ordered by fee rate (fee per byte of raw
+ * transaction). Once the pool holds more than its maximum number of transactions or bytes, the
+ * transactions with the lowest fee rate are evicted, each with its descendants in the pool. A pool
+ * is thread-safe: each method holds the lock of the pool, which callers can hold themselves to make
+ * several calls at once.
+ */
 public class TransactionPool {
 
-    private HashMap<ByteArrayWrapper, Transaction> H;
+    public static final int DEFAULT_MAX_TRANSACTIONS = 50000;
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    // Highest fee rate first, and oldest first for equal fee rates
+    private static final Comparator<Entry> BY_FEE_RATE = Comparator
+            .comparingDouble((Entry entry) -> -entry.feeRate)
+            .thenComparingLong(entry -> entry.sequence);
+
+    private HashMap<HashWrapper, Entry> H;
+    private TreeSet<Entry> byFeeRate;
+    // The transaction of the pool claiming each UTXO
+    private HashMap<UTXO, Transaction> spentBy;
+    private final int maxTransactions;
+    private final long maxBytes;
+    private long bytes;
+    private long nextSequence;
+    private long modificationCount;
+    // Reused for the lookups that don't keep the hash or UTXO they look for
+    private final HashWrapper.Probe hashProbe = new HashWrapper.Probe();
+    private final UTXO.Probe utxoProbe = new UTXO.Probe();
 
     public TransactionPool() {
-        H = new HashMap<ByteArrayWrapper, Transaction>();
+        this(DEFAULT_MAX_TRANSACTIONS, DEFAULT_MAX_BYTES);
+    }
+
+    public TransactionPool(int maxTransactions, long maxBytes) {
+        H = new HashMap<HashWrapper, Entry>();
+        byFeeRate = new TreeSet<Entry>(BY_FEE_RATE);
+        spentBy = new HashMap<UTXO, Transaction>();
+        this.maxTransactions = maxTransactions;
+        this.maxBytes = maxBytes;
     }
 
     public TransactionPool(TransactionPool txPool) {
-        H = new HashMap<ByteArrayWrapper, Transaction>(txPool.H);
+        synchronized (txPool) {
+            H = new HashMap<HashWrapper, Entry>(txPool.H);
+            byFeeRate = new TreeSet<Entry>(txPool.byFeeRate);
+            spentBy = new HashMap<UTXO, Transaction>(txPool.spentBy);
+            maxTransactions = txPool.maxTransactions;
+            maxBytes = txPool.maxBytes;
+            bytes = txPool.bytes;
+            nextSequence = txPool.nextSequence;
+            modificationCount = txPool.modificationCount;
+        }
+    }
+
+    /** Adds {@code tx} with an unknown fee, which ranks it with the transactions that pay none */
+    public synchronized void addTransaction(Transaction tx) {
+        addTransaction(tx, 0);
+    }
+
+    /**
+     * Adds {@code tx} with its fee computed from the outputs it claims in {@code utxoPool} or in
+     * the transactions of this pool. If some output can't be found, its fee is unknown.
+     */
+    public synchronized void addTransaction(Transaction tx, UTXOPool utxoPool) {
+        addTransaction(tx, computeFee(tx, utxoPool));
     }
 
-    public void addTransaction(Transaction tx) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
-        H.put(hash, tx);
+    public synchronized void removeTransaction(byte[] txHash) {
+        Entry entry = H.remove(hashProbe.set(txHash));
+        if (entry != null) {
+            byFeeRate.remove(entry);
+            bytes -= entry.size;
+            modificationCount++;
+            for (Transaction.Input in : entry.tx.getInputs()) {
+                if (in != null && in.prevTxHash != null)
+                    spentBy.remove(utxoProbe.set(in.prevTxHash, in.outputIndex), entry.tx);
+            }
+        }
     }
 
-    public void removeTransaction(byte[] txHash) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        H.remove(hash);
+    public synchronized Transaction getTransaction(byte[] txHash) {
+        Entry entry = H.get(hashProbe.set(txHash));
+        return entry == null ? null : entry.tx;
     }
 
-    public Transaction getTransaction(byte[] txHash) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        return H.get(hash);
+    /** @return the transaction of the pool claiming {@code utxo}, or null if there is none */
+    public synchronized Transaction getSpendingTransaction(UTXO utxo) {
+        return spentBy.get(utxo);
     }
 
-    public ArrayList<Transaction> getTransactions() {
+    /** @return the fee of the transaction with hash {@code txHash}, or 0 if it isn't in the pool */
+    public synchronized double getFee(byte[] txHash) {
+        Entry entry = H.get(hashProbe.set(txHash));
+        return entry == null ? 0 : entry.fee;
+    }
+
+    /** @return all transactions of the pool, highest fee rate first */
+    public synchronized ArrayList<Transaction> getTransactions() {
+        return topN(H.size());
+    }
+
+    /** @return the {@code limit} transactions with the highest fee rate, highest first */
+    public synchronized ArrayList<Transaction> topN(int limit) {
         ArrayList<Transaction> T = new ArrayList<Transaction>();
-        for (Transaction tx : H.values())
-            T.add(tx);
+        for (Entry entry : byFeeRate) {
+            if (T.size() >= limit)
+                break;
+            T.add(entry.tx);
+        }
         return T;
     }
+
+    public synchronized int size() {
+        return H.size();
+    }
+
+    /** @return the total size of the raw transactions in the pool */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /** @return a number that changes whenever a transaction is added to or removed from the pool */
+    public synchronized long getModificationCount() {
+        return modificationCount;
+    }
+
+    /**
+     * @return whether {@code tx} and its ancestors in the pool, the transactions of the pool it
+     *         spends outputs of directly or indirectly, are at most {@code maxTxs} transactions and
+     *         {@code maxBytes} bytes
+     */
+    public synchronized boolean isWithinPackageLimits(Transaction tx, int maxTxs, long maxBytes) {
+        HashSet<HashWrapper> visited = new HashSet<HashWrapper>();
+        ArrayDeque<Transaction> txs = new ArrayDeque<Transaction>();
+        txs.add(tx);
+        long packageBytes = 0;
+        while (!txs.isEmpty()) {
+            Transaction current = txs.poll();
+            packageBytes += current.getRawTxSize();
+            if (visited.size() + 1 > maxTxs || packageBytes > maxBytes)
+                return false;
+            for (Transaction.Input in : current.getInputs()) {
+                Entry parent = in == null || in.prevTxHash == null ? null : H.get(hashProbe.set(in.prevTxHash));
+                if (parent != null && visited.add(HashWrapper.wrap(parent.tx.getHash())))
+                    txs.add(parent.tx);
+            }
+        }
+        return true;
+    }
+
+    /** Adds {@code tx} with the known fee {@code fee} */
+    synchronized void addTransaction(Transaction tx, double fee) {
+        removeTransaction(tx.getHash());
+
+        HashWrapper hash = HashWrapper.wrap(tx.getHash());
+        Entry entry = new Entry(tx, fee, tx.getRawTxSize(), nextSequence++);
+        H.put(hash, entry);
+        byFeeRate.add(entry);
+        bytes += entry.size;
+        modificationCount++;
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in != null && in.prevTxHash != null)
+                spentBy.put(UTXO.wrap(in.prevTxHash, in.outputIndex), tx);
+        }
+
+        while (H.size() > maxTransactions || bytes > maxBytes) {
+            removeWithDescendants(byFeeRate.last().tx);
+        }
+    }
+
+    // Removes tx along with the transactions of the pool spending its outputs, which could never be
+    // mined without it
+    private void removeWithDescendants(Transaction tx) {
+        ArrayDeque<Transaction> txs = new ArrayDeque<Transaction>();
+        txs.add(tx);
+        while (!txs.isEmpty()) {
+            Transaction current = txs.poll();
+            removeTransaction(current.getHash());
+            for (int i = 0; i < current.numOutputs(); i++) {
+                Transaction child = spentBy.get(utxoProbe.set(current.getHash(), i));
+                if (child != null)
+                    txs.add(child);
+            }
+        }
+    }
+
+    private double computeFee(Transaction tx, UTXOPool utxoPool) {
+        double fee = 0;
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in == null || in.prevTxHash == null)
+                return 0;
+            Transaction.Output claimed = utxoPool.getTxOutput(utxoProbe.set(in.prevTxHash, in.outputIndex));
+            if (claimed == null) {
+                Transaction parent = getTransaction(in.prevTxHash);
+                if (parent == null || in.outputIndex < 0 || parent.getOutput(in.outputIndex) == null)
+                    return 0;
+                claimed = parent.getOutput(in.outputIndex);
+            }
+            fee += claimed.value;
+        }
+        for (Transaction.Output op : tx.getOutputs())
+            fee -= op.value;
+        return fee;
+    }
+
+    private static class Entry {
+        private final Transaction tx;
+        private final double fee;
+        private final int size;
+        private final double feeRate;
+        private final long sequence;
+
+        private Entry(Transaction tx, double fee, int size, long sequence) {
+            this.tx = tx;
+            this.fee = fee;
+            this.size = size;
+            this.feeRate = size == 0 ? fee : fee / size;
+            this.sequence = sequence;
+        }
+    }
 }
@@ -0,0 +1,203 @@
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+
+/**
+ * A read-only view of a transaction encoded by BlockCodec, on its own or within a block. The view
+ * only finds where the fields are, and reads them in place from the underlying buffer when asked,
+ * so byte arrays are returned as slices of that buffer rather than copied.
+ */
+public class TransactionView {
+
+    // The fewest bytes an input takes: a null hash, the output index and a null signature
+    private static final int MIN_INPUT_SIZE = 1 + Integer.BYTES + 1;
+    // The fewest bytes an output takes: the value and the number of its key
+    private static final int MIN_OUTPUT_SIZE = Double.BYTES + 1;
+
+    // The transaction without its length prefix
+    private final ByteBuffer body;
+    // The encoded keys the outputs refer to by number
+    private final ByteBuffer[] keys;
+    private final int encodedSize;
+    private final boolean coinbase;
+    private final ByteBuffer hash;
+    private final int[] inputOffsets;
+    private final int[] outputOffsets;
+
+    /**
+     * Creates a view of the transaction encoded on its own at the position of {@code buffer}, which
+     * is left as is
+     *
+     * @throws IllegalArgumentException if the transaction was encoded in an unknown format or is
+     *                                  malformed
+     * @throws java.nio.BufferUnderflowException if the transaction is truncated
+     */
+    public TransactionView(ByteBuffer buffer) {
+        ByteBuffer cursor = buffer.duplicate();
+        if (cursor.get() != BlockCodec.VERSION)
+            throw new IllegalArgumentException("Unknown transaction format");
+        keys = readKeys(cursor);
+        body = BlockCodec.getSlice(cursor, BlockCodec.getVarInt(cursor));
+        encodedSize = cursor.position() - buffer.position();
+
+        ByteBuffer fields = body.duplicate();
+        coinbase = (fields.get() & BlockCodec.COINBASE_FLAG) != 0;
+        hash = BlockCodec.getBytesSlice(fields);
+        inputOffsets = new int[BlockCodec.getCount(fields, MIN_INPUT_SIZE)];
+        outputOffsets = findOffsets(fields, inputOffsets, keys.length);
+    }
+
+    // Creates a view of body, a transaction of a block with the key table keys. Throws
+    // IllegalArgumentException or BufferUnderflowException if body is malformed.
+    TransactionView(ByteBuffer body, ByteBuffer[] keys) {
+        this.body = body;
+        this.keys = keys;
+        this.encodedSize = BlockCodec.getVarIntSize(body.remaining()) + body.remaining();
+
+        ByteBuffer fields = body.duplicate();
+        coinbase = (fields.get() & BlockCodec.COINBASE_FLAG) != 0;
+        hash = BlockCodec.getBytesSlice(fields);
+        inputOffsets = new int[BlockCodec.getCount(fields, MIN_INPUT_SIZE)];
+        outputOffsets = findOffsets(fields, inputOffsets, keys.length);
+    }
+
+    public boolean isCoinbase() {
+        return coinbase;
+    }
+
+    /** @return the hash of the transaction, or null if it has none */
+    public ByteBuffer getHash() {
+        return hash == null ? null : hash.duplicate();
+    }
+
+    public int numInputs() {
+        return inputOffsets.length;
+    }
+
+    public ByteBuffer getPrevTxHash(int index) {
+        return BlockCodec.getBytesSlice(input(index));
+    }
+
+    public int getOutputIndex(int index) {
+        ByteBuffer cursor = input(index);
+        BlockCodec.getBytesSlice(cursor);
+        return cursor.getInt();
+    }
+
+    public ByteBuffer getSignature(int index) {
+        ByteBuffer cursor = input(index);
+        BlockCodec.getBytesSlice(cursor);
+        cursor.getInt();
+        return BlockCodec.getBytesSlice(cursor);
+    }
+
+    public int numOutputs() {
+        return outputOffsets.length;
+    }
+
+    public double getValue(int index) {
+        return body.getDouble(outputOffsets[index]);
+    }
+
+    /** @return the number of the key of output {@code index} in the key table, or -1 if it has none */
+    public int getKeyNumber(int index) {
+        ByteBuffer cursor = body.duplicate().position(outputOffsets[index] + Double.BYTES);
+        return BlockCodec.getVarInt(cursor) - 1;
+    }
+
+    /** @return the X.509 encoded key of output {@code index}, or null if it has none */
+    public ByteBuffer getKey(int index) {
+        int number = getKeyNumber(index);
+        return number < 0 ? null : keys[number].duplicate();
+    }
+
+    /** @return the number of bytes the transaction takes in the buffer, with its length prefix */
+    public int getEncodedSize() {
+        return encodedSize;
+    }
+
+    /**
+     * @return the decoded transaction, hashed from its fields rather than given the encoded hash,
+     *         or null if one of its outputs has no key or an invalid one
+     */
+    public Transaction toTransaction() {
+        return toTransaction(false);
+    }
+
+    /** Like {@link #toTransaction()}, but keeps the encoded hash if {@code trustHash} */
+    Transaction toTransaction(boolean trustHash) {
+        PublicKey[] decodedKeys = BlockCodec.decodeKeys(keys);
+        if (decodedKeys == null)
+            return null;
+        try {
+            return toTransaction(decodedKeys, trustHash);
+        } catch (IllegalArgumentException x) {
+            return null;
+        }
+    }
+
+    // Decodes the transaction, with decodedKeys the decoded key table. Throws
+    // IllegalArgumentException if it must be hashed but has an output without a key.
+    Transaction toTransaction(PublicKey[] decodedKeys, boolean trustHash) {
+        Transaction tx = new Transaction(coinbase);
+        for (int i = 0; i < inputOffsets.length; i++) {
+            ByteBuffer cursor = input(i);
+            byte[] prevTxHash = copy(BlockCodec.getBytesSlice(cursor));
+            tx.addInput(prevTxHash, cursor.getInt());
+            tx.addSignature(copy(BlockCodec.getBytesSlice(cursor)), i);
+        }
+        for (int i = 0; i < outputOffsets.length; i++) {
+            int number = getKeyNumber(i);
+            if (number < 0 && !trustHash)
+                throw new IllegalArgumentException("Output without a key");
+            tx.addOutput(getValue(i), number < 0 ? null : decodedKeys[number]);
+        }
+        if (trustHash)
+            tx.setHash(copy(hash));
+        else
+            tx.finalize();
+        return tx;
+    }
+
+    /** Reads a key table at the position of {@code cursor}, which is moved past it */
+    static ByteBuffer[] readKeys(ByteBuffer cursor) {
+        // Each key takes at least its length prefix
+        ByteBuffer[] keys = new ByteBuffer[BlockCodec.getCount(cursor, 1)];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = BlockCodec.getBytesSlice(cursor);
+            if (keys[i] == null)
+                throw new IllegalArgumentException("Null key in the key table");
+        }
+        return keys;
+    }
+
+    static byte[] copy(ByteBuffer slice) {
+        if (slice == null)
+            return null;
+        byte[] bytes = new byte[slice.remaining()];
+        slice.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private ByteBuffer input(int index) {
+        return body.duplicate().position(inputOffsets[index]);
+    }
+
+    // Fills inputOffsets from the inputs at the position of fields, and returns the output offsets.
+    // Outputs may only refer to the numKeys keys of the key table.
+    private static int[] findOffsets(ByteBuffer fields, int[] inputOffsets, int numKeys) {
+        for (int i = 0; i < inputOffsets.length; i++) {
+            inputOffsets[i] = fields.position();
+            BlockCodec.getBytesSlice(fields);
+            fields.getInt();
+            BlockCodec.getBytesSlice(fields);
+        }
+        int[] outputOffsets = new int[BlockCodec.getCount(fields, MIN_OUTPUT_SIZE)];
+        for (int i = 0; i < outputOffsets.length; i++) {
+            outputOffsets[i] = fields.position();
+            fields.getDouble();
+            if (BlockCodec.getVarInt(fields) > numKeys)
+                throw new IllegalArgumentException("Output key not in the key table");
+        }
+        return outputOffsets;
+    }
+}
@@ -1,5 +1,7 @@
 import java.security.PublicKey;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 
 /**
  * I acknowledge that I am aware of the academic integrity guidelines of this
@@ -9,8 +11,21 @@ import java.util.HashMap;
 
 public class TxHandler {
 
+    /** Minimum number of signatures in a call to handleTxs for them to be verified in parallel */
+    private static final int MIN_PARALLEL_SIGNATURES = 16;
+
+    // Shared by all handlers, as the same transactions are validated by each block that includes them
+    private static final SignatureCache signatureCache = new SignatureCache(SignatureCache.DEFAULT_CAPACITY);
+
     private UTXOPool utxoPool;
 
+    // Signatures of the transactions in the current call to handleTxs that were verified up front
+    private IdentityHashMap<Transaction, VerifiedSignature[]> verifiedSignatures = new IdentityHashMap<>();
+
+    // Reused for the lookups that don't keep the UTXO or hash they look for
+    private final UTXO.Probe utxoProbe = new UTXO.Probe();
+    private final HashWrapper.Probe hashProbe = new HashWrapper.Probe();
+
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
      * {@code utxoPool}. 
@@ -32,35 +47,37 @@ public class TxHandler {
         // IMPLEMENT THIS
         double input_values = 0, output_values = 0;
         HashMap<UTXO, Boolean> takenUTXOs = new HashMap<>();
+        Transaction.Output[] claimedOutputs = new Transaction.Output[tx.numInputs()];
         UTXO currentInputUTXO;
 
         // Check all outputs claimed by {@code tx} are in the current UTXO pool, and no UTXO is claimed multiple times by {@code tx}
-        for (Transaction.Input input : tx.getInputs()) {
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input input = tx.getInput(i);
             if (input == null || input.prevTxHash == null) {
                 return false;
             }
-            currentInputUTXO = new UTXO(input.prevTxHash, input.outputIndex);
+            currentInputUTXO = UTXO.wrap(input.prevTxHash, input.outputIndex);
 
             if (takenUTXOs.containsKey(currentInputUTXO) || !utxoPool.contains(currentInputUTXO)) {
                 return false;
             }
 
             takenUTXOs.put(currentInputUTXO, true);
-            input_values += utxoPool.getTxOutput(currentInputUTXO).value;
+            claimedOutputs[i] = utxoPool.getTxOutput(currentInputUTXO);
+            input_values += claimedOutputs[i].value;
         }
 
         // Check the signatures on each input of {@code tx} are valid
         for (int i = 0; i < tx.numInputs(); i++) {
             Transaction.Input input = tx.getInput(i);
-            currentInputUTXO = new UTXO(input.prevTxHash, input.outputIndex);
-            PublicKey publicKey = utxoPool.getTxOutput(currentInputUTXO).address;
+            PublicKey publicKey = claimedOutputs[i].address;
             byte[] message = tx.getRawDataToSign(i);
 
             if (input.signature == null || message == null || publicKey == null) {
                 return false;
             }
 
-            if (!Crypto.verifySignature(publicKey, message, input.signature)) {
+            if (!verifySignature(tx, i, publicKey, message, input.signature)) {
                 return false;
             }
         }
@@ -89,24 +106,44 @@ public class TxHandler {
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
         // IMPLEMENT THIS
-        boolean[] txIsValidArray = new boolean[possibleTxs.length];
-        boolean isFinished = false;
+        try {
+            verifySignaturesInParallel(possibleTxs);
+            return handleVerifiedTxs(possibleTxs);
+        } finally {
+            verifiedSignatures.clear();
+        }
+    }
 
-        while (!isFinished) {
-            isFinished = true;
+    /**
+     * Verifies the signatures of the inputs of {@code txs} into the signature cache, in parallel,
+     * the way handleTxs does up front, so that validating {@code txs} later mostly hits the cache
+     */
+    void warmSignatureCache(Transaction[] txs) {
+        try {
+            verifySignaturesInParallel(txs);
+        } finally {
+            verifiedSignatures.clear();
+        }
+    }
+
+    public UTXOPool getUTXOPool() {
+        return utxoPool;
+    }
 
-            for (int i = 0; i < possibleTxs.length; i++) {
-                if (!txIsValidArray[i]) {
-                    if (isValidTx(possibleTxs[i])) {
-                        txIsValidArray[i] = true;
+    /** @return the cache of successfully verified signatures shared by all handlers */
+    public static SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
 
-                        removeUTXOsOfTransaction(possibleTxs[i]);
-                        addUTXOsOfTransaction(possibleTxs[i]);
-                        isFinished = false;
-                    }
-                }
+    private Transaction[] handleVerifiedTxs(Transaction[] possibleTxs) {
+        boolean[] txIsValidArray = TxScheduler.accept(possibleTxs, tx -> {
+            if (!isValidTx(tx)) {
+                return false;
             }
-        }
+            removeUTXOsOfTransaction(tx);
+            addUTXOsOfTransaction(tx);
+            return true;
+        });
 
         int numberOfValidTransactions = 0;
         for (int i = 0; i < txIsValidArray.length; i++) {
@@ -128,14 +165,108 @@ public class TxHandler {
         return validTransactions;
     }
 
-    public UTXOPool getUTXOPool() {
-        return utxoPool;
+    /**
+     * Verifies the signatures of all inputs of {@code possibleTxs} that are not in the signature
+     * cache on the common fork-join pool. The key of each input is taken from the output it claims
+     * in the pool, or in another of {@code possibleTxs}. isValidTx uses a result only if the input
+     * turns out to claim an output with the same key, and verifies the signature itself otherwise.
+     */
+    private void verifySignaturesInParallel(Transaction[] possibleTxs) {
+        HashMap<HashWrapper, Transaction> possibleTxsByHash = new HashMap<>();
+        for (Transaction tx : possibleTxs) {
+            if (tx != null && tx.getHash() != null) {
+                possibleTxsByHash.putIfAbsent(HashWrapper.wrap(tx.getHash()), tx);
+            }
+        }
+
+        ArrayList<VerifiedSignature> signatures = new ArrayList<>();
+        for (Transaction tx : possibleTxs) {
+            if (tx == null || verifiedSignatures.containsKey(tx)) {
+                continue;
+            }
+
+            VerifiedSignature[] txSignatures = new VerifiedSignature[tx.numInputs()];
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input input = tx.getInput(i);
+                if (input == null || input.prevTxHash == null || input.signature == null) {
+                    continue;
+                }
+
+                Transaction.Output claimedOutput = getClaimedOutput(input, possibleTxsByHash);
+                if (claimedOutput == null || claimedOutput.address == null) {
+                    continue;
+                }
+
+                byte[] message = tx.getRawDataToSign(i);
+                if (message != null) {
+                    txSignatures[i] = new VerifiedSignature(tx.getHash(), i, claimedOutput.address, message, input.signature);
+                    signatures.add(txSignatures[i]);
+                }
+            }
+            verifiedSignatures.put(tx, txSignatures);
+        }
+
+        if (signatures.size() < MIN_PARALLEL_SIGNATURES) {
+            verifiedSignatures.clear();
+            return;
+        }
+
+        ArrayList<VerifiedSignature> unverifiedSignatures = new ArrayList<>();
+        for (VerifiedSignature signature : signatures) {
+            signature.isValid = signatureCache.isVerified(signature.txHash, signature.inputIndex,
+                    signature.publicKey, signature.message, signature.signature);
+            if (!signature.isValid) {
+                unverifiedSignatures.add(signature);
+            }
+        }
+
+        int count = unverifiedSignatures.size();
+        PublicKey[] publicKeys = new PublicKey[count];
+        byte[][] messages = new byte[count][];
+        byte[][] signatureBytes = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            publicKeys[i] = unverifiedSignatures.get(i).publicKey;
+            messages[i] = unverifiedSignatures.get(i).message;
+            signatureBytes[i] = unverifiedSignatures.get(i).signature;
+        }
+
+        Crypto.Result[] results = Crypto.verifyAll(publicKeys, messages, signatureBytes);
+        for (int i = 0; i < count; i++) {
+            VerifiedSignature signature = unverifiedSignatures.get(i);
+            signature.isValid = results[i] == Crypto.Result.VALID;
+            if (signature.isValid) {
+                signatureCache.addVerified(signature.txHash, signature.inputIndex,
+                        signature.publicKey, signature.message, signature.signature);
+            }
+        }
+    }
+
+    private Transaction.Output getClaimedOutput(Transaction.Input input, HashMap<HashWrapper, Transaction> possibleTxsByHash) {
+        Transaction.Output output = utxoPool.getTxOutput(utxoProbe.set(input.prevTxHash, input.outputIndex));
+        if (output != null) {
+            return output;
+        }
+
+        Transaction prevTx = possibleTxsByHash.get(hashProbe.set(input.prevTxHash));
+        if (prevTx == null || input.outputIndex < 0) {
+            return null;
+        }
+        return prevTx.getOutput(input.outputIndex);
+    }
+
+    private boolean verifySignature(Transaction tx, int index, PublicKey publicKey, byte[] message, byte[] signature) {
+        VerifiedSignature[] txSignatures = verifiedSignatures.get(tx);
+        if (txSignatures != null && txSignatures[index] != null && txSignatures[index].publicKey == publicKey) {
+            return txSignatures[index].isValid;
+        }
+
+        return signatureCache.verifySignature(tx.getHash(), index, publicKey, message, signature);
     }
 
     private void removeUTXOsOfTransaction(Transaction tx) {
         UTXO currentInputUTXO;
         for (Transaction.Input input : tx.getInputs()) {
-            currentInputUTXO = new UTXO(input.prevTxHash, input.outputIndex);
+            currentInputUTXO = UTXO.wrap(input.prevTxHash, input.outputIndex);
             utxoPool.removeUTXO(currentInputUTXO);
         }
     }
@@ -143,9 +274,27 @@ public class TxHandler {
     private void addUTXOsOfTransaction(Transaction tx) {
         UTXO currentOutputUTXO;
         for (int i = 0; i < tx.numOutputs(); i++) {
-            currentOutputUTXO = new UTXO(tx.getHash(), i);
+            currentOutputUTXO = UTXO.wrap(tx.getHash(), i);
             utxoPool.addUTXO(currentOutputUTXO, tx.getOutput(i));
         }
     }
 
+    // The result of verifying one input's signature ahead of the checks that depend on the UTXO pool
+    private static class VerifiedSignature {
+        private final byte[] txHash;
+        private final int inputIndex;
+        private final PublicKey publicKey;
+        private final byte[] message;
+        private final byte[] signature;
+        private boolean isValid;
+
+        public VerifiedSignature(byte[] txHash, int inputIndex, PublicKey publicKey, byte[] message, byte[] signature) {
+            this.txHash = txHash;
+            this.inputIndex = inputIndex;
+            this.publicKey = publicKey;
+            this.message = message;
+            this.signature = signature;
+        }
+    }
+
 }
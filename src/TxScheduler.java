@@ -0,0 +1,64 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * The order in which TxHandler.handleTxs accepts a set of transactions, shared by everything that
+ * must apply them the same way. The result is the one of scanning all transactions in order, again
+ * and again, until a scan accepts nothing. A rejected transaction can only become valid when one of
+ * the UTXOs it claims is added to the pool, so it is indexed by them and only checked again then:
+ * in the current scan if it comes after the transaction that added the UTXO, or in the next one.
+ */
+class TxScheduler {
+
+    /**
+     * Offers {@code txs} to {@code tryAccept} in that order. {@code tryAccept} must return whether
+     * it accepted a transaction, after applying it to its UTXO pool if it did.
+     *
+     * @return which of {@code txs} were accepted
+     */
+    static boolean[] accept(Transaction[] txs, Predicate<Transaction> tryAccept) {
+        boolean[] accepted = new boolean[txs.length];
+        HashMap<UTXO, ArrayList<Integer>> waitingTxs = new HashMap<>();
+        TreeSet<Integer> currentScan = new TreeSet<>();
+        TreeSet<Integer> nextScan = new TreeSet<>();
+        UTXO.Probe utxoProbe = new UTXO.Probe();
+        for (int i = 0; i < txs.length; i++) {
+            currentScan.add(i);
+        }
+
+        while (!currentScan.isEmpty()) {
+            while (!currentScan.isEmpty()) {
+                int i = currentScan.pollFirst();
+                if (accepted[i]) {
+                    continue;
+                }
+
+                if (!tryAccept.test(txs[i])) {
+                    for (Transaction.Input input : txs[i].getInputs()) {
+                        if (input != null && input.prevTxHash != null) {
+                            waitingTxs.computeIfAbsent(UTXO.wrap(input.prevTxHash, input.outputIndex), k -> new ArrayList<>()).add(i);
+                        }
+                    }
+                    continue;
+                }
+
+                accepted[i] = true;
+                for (int j = 0; j < txs[i].numOutputs(); j++) {
+                    ArrayList<Integer> waiting = waitingTxs.remove(utxoProbe.set(txs[i].getHash(), j));
+                    if (waiting != null) {
+                        for (int waitingIndex : waiting) {
+                            (waitingIndex > i ? currentScan : nextScan).add(waitingIndex);
+                        }
+                    }
+                }
+            }
+
+            TreeSet<Integer> finishedScan = currentScan;
+            currentScan = nextScan;
+            nextScan = finishedScan;
+        }
+        return accepted;
+    }
+}
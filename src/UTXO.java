@@ -8,6 +8,9 @@ public class UTXO implements Comparable<UTXO> {
     /** Index of the corresponding output in said transaction */
     private int index;
 
+    /** Hash code of this UTXO, computed once */
+    private int hash;
+
     /**
      * Creates a new UTXO corresponding to the output with index <index> in the transaction whose
      * hash is {@code txHash}
@@ -15,6 +18,21 @@ public class UTXO implements Comparable<UTXO> {
     public UTXO(byte[] txHash, int index) {
         this.txHash = Arrays.copyOf(txHash, txHash.length);
         this.index = index;
+        this.hash = hashOf(this.txHash, index);
+    }
+
+    private UTXO() {
+    }
+
+    /**
+     * @return a UTXO corresponding to the output with index {@code index} in the transaction whose
+     *         hash is {@code txHash}, which it shares instead of copying it. {@code txHash} must
+     *         not be modified afterwards.
+     */
+    public static UTXO wrap(byte[] txHash, int index) {
+        UTXO utxo = new UTXO();
+        utxo.setOutput(txHash, index);
+        return utxo;
     }
 
     /** @return the transaction hash of this UTXO */
@@ -35,7 +53,7 @@ public class UTXO implements Comparable<UTXO> {
         if (other == null) {
             return false;
         }
-        if (getClass() != other.getClass()) {
+        if (!(other instanceof UTXO)) {
             return false;
         }
 
@@ -56,12 +74,22 @@ public class UTXO implements Comparable<UTXO> {
      * utxo1.equals(utxo2) => utxo1.hashCode() == utxo2.hashCode())
      */
     public int hashCode() {
+        return hash;
+    }
+
+    private static int hashOf(byte[] txHash, int index) {
         int hash = 1;
         hash = hash * 17 + index;
-        hash = hash * 31 + Arrays.hashCode(txHash);
+        hash = hash * 31 + HashWrapper.hashOf(txHash);
         return hash;
     }
 
+    private void setOutput(byte[] txHash, int index) {
+        this.txHash = txHash;
+        this.index = index;
+        this.hash = hashOf(txHash, index);
+    }
+
     /** Compares this UTXO to the one specified by {@code utxo} */
     public int compareTo(UTXO utxo) {
         byte[] hash = utxo.txHash;
@@ -88,4 +116,17 @@ public class UTXO implements Comparable<UTXO> {
             }
         }
     }
+
+    /**
+     * A UTXO that can be pointed at another output, to look UTXOs up in pools and hash maps
+     * without allocating. A probe must never be added to a pool or stored in a map, and is not
+     * thread-safe.
+     */
+    static final class Probe extends UTXO {
+        /** Points this probe at the output with index {@code index} of transaction {@code txHash} */
+        Probe set(byte[] txHash, int index) {
+            ((UTXO) this).setOutput(txHash, index);
+            return this;
+        }
+    }
 }
@@ -1,22 +1,60 @@
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 public class UTXOPool {
 
+    /** Marks a UTXO removed by a pool while it is still present in the layers below it */
+    private static final Transaction.Output REMOVED = new Transaction().new Output(0, null);
+
     /**
-     * The current collection of UTXOs, with each one mapped to its corresponding transaction output
+     * The changes made to this pool since it was last copied, with each UTXO mapped to its
+     * corresponding transaction output, or to {@code REMOVED} if it has been removed
      */
     private HashMap<UTXO, Transaction.Output> H;
 
+    /** The frozen state this pool is built on, shared with the pools it was copied from or into */
+    private Layer base;
+
+    /**
+     * The registry numbering the keys of the bottom layer of this pool, packed into a
+     * {@code PackedUTXOIndex}, or null if the pool isn't packed
+     */
+    private final KeyRegistry keyRegistry;
+
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
+        this(false);
+    }
+
+    /**
+     * Creates a new empty UTXOPool. If {@code packed} is true, the bulk of the pool and of its
+     * copies is kept in a {@code PackedUTXOIndex} rather than in maps of objects, which takes a
+     * fraction of the memory for large pools.
+     */
+    public UTXOPool(boolean packed) {
+        this(packed ? new KeyRegistry() : null);
+    }
+
+    /**
+     * Creates a new empty UTXOPool packed like {@code UTXOPool(true)}, with the keys numbered by
+     * {@code keyRegistry}, which the pool and its copies share
+     */
+    public UTXOPool(KeyRegistry keyRegistry) {
         H = new HashMap<UTXO, Transaction.Output>();
+        this.keyRegistry = keyRegistry;
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /**
+     * Creates a new UTXOPool that is a copy of {@code uPool}. Both pools share the state of
+     * {@code uPool} at this point, so the copy costs as much as the changes made to {@code uPool}
+     * since it was last copied, and later changes to either pool are not visible in the other.
+     */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        H = new HashMap<UTXO, Transaction.Output>();
+        base = uPool.freeze();
+        keyRegistry = uPool.keyRegistry;
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
@@ -26,7 +64,10 @@ public class UTXOPool {
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
-        H.remove(utxo);
+        if (base == null || base.get(utxo) == REMOVED)
+            H.remove(utxo);
+        else
+            H.put(utxo, REMOVED);
     }
 
     /**
@@ -34,21 +75,134 @@ public class UTXOPool {
      *         not in the pool.
      */
     public Transaction.Output getTxOutput(UTXO ut) {
-        return H.get(ut);
+        Transaction.Output txOut = lookup(ut);
+        return txOut == REMOVED ? null : txOut;
     }
 
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        return lookup(utxo) != REMOVED;
     }
 
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
+        HashMap<UTXO, Transaction.Output> all = new HashMap<UTXO, Transaction.Output>();
+        if (base != null)
+            base.applyTo(all);
+        applyChanges(H, all);
+        Set<UTXO> setUTXO = all.keySet();
         ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
         for (UTXO ut : setUTXO) {
             allUTXO.add(ut);
         }
         return allUTXO;
     }
+
+    /** @return the output of {@code utxo}, or {@code REMOVED} if it is not in the pool */
+    private Transaction.Output lookup(UTXO utxo) {
+        Transaction.Output txOut = H.get(utxo);
+        if (txOut == null && !H.containsKey(utxo))
+            txOut = base == null ? REMOVED : base.get(utxo);
+        return txOut;
+    }
+
+    /**
+     * Moves the changes of this pool into a new frozen layer on top of {@code base}, so that they
+     * can be shared with a copy of this pool
+     */
+    private Layer freeze() {
+        if (!H.isEmpty()) {
+            base = Layer.push(base, H, keyRegistry);
+            H = new HashMap<UTXO, Transaction.Output>();
+        }
+        return base;
+    }
+
+    private static void applyChanges(Map<UTXO, Transaction.Output> changes,
+                                     Map<UTXO, Transaction.Output> target) {
+        for (Map.Entry<UTXO, Transaction.Output> change : changes.entrySet()) {
+            if (change.getValue() == REMOVED)
+                target.remove(change.getKey());
+            else
+                target.put(change.getKey(), change.getValue());
+        }
+    }
+
+    /**
+     * An immutable set of changes on top of a parent layer. A layer is merged with its parent
+     * whenever the parent is not much larger, which keeps the number of layers logarithmic in the
+     * number of changes while every UTXO is copied only a logarithmic number of times. The bottom
+     * layer of a packed pool holds its UTXOs in a {@code PackedUTXOIndex} instead of a map.
+     */
+    private static class Layer {
+        private final Layer parent;
+        private final HashMap<UTXO, Transaction.Output> changes;
+        private final PackedUTXOIndex index;
+
+        private Layer(Layer parent, HashMap<UTXO, Transaction.Output> changes) {
+            this.parent = parent;
+            this.changes = changes;
+            this.index = null;
+        }
+
+        private Layer(PackedUTXOIndex index) {
+            this.parent = null;
+            this.changes = null;
+            this.index = index;
+        }
+
+        private int size() {
+            return index != null ? index.size() : changes.size();
+        }
+
+        private static Layer push(Layer parent, HashMap<UTXO, Transaction.Output> changes, KeyRegistry keyRegistry) {
+            while (parent != null && parent.size() <= 2 * changes.size()) {
+                if (parent.index != null)
+                    return new Layer(pack(changes, new PackedUTXOIndex(parent.index)));
+                HashMap<UTXO, Transaction.Output> merged =
+                        new HashMap<UTXO, Transaction.Output>(parent.changes);
+                merged.putAll(changes);
+                // There is nothing below the bottom layer for a removed UTXO to hide
+                if (parent.parent == null)
+                    merged.values().removeIf(txOut -> txOut == REMOVED);
+                changes = merged;
+                parent = parent.parent;
+            }
+            if (parent == null && keyRegistry != null)
+                return new Layer(pack(changes, new PackedUTXOIndex(keyRegistry, changes.size())));
+            return new Layer(parent, changes);
+        }
+
+        private static PackedUTXOIndex pack(Map<UTXO, Transaction.Output> changes,
+                                            PackedUTXOIndex index) {
+            for (Map.Entry<UTXO, Transaction.Output> change : changes.entrySet()) {
+                if (change.getValue() == REMOVED)
+                    index.remove(change.getKey());
+                else
+                    index.put(change.getKey(), change.getValue());
+            }
+            return index;
+        }
+
+        /** @return the output of {@code utxo}, or {@code REMOVED} if it is not in this layer */
+        private Transaction.Output get(UTXO utxo) {
+            for (Layer layer = this; layer != null; layer = layer.parent) {
+                if (layer.index != null)
+                    return layer.index.get(utxo, REMOVED);
+                Transaction.Output txOut = layer.changes.get(utxo);
+                if (txOut != null || layer.changes.containsKey(utxo))
+                    return txOut;
+            }
+            return REMOVED;
+        }
+
+        private void applyTo(Map<UTXO, Transaction.Output> target) {
+            if (index != null)
+                index.forEach(target::put);
+            else if (parent != null)
+                parent.applyTo(target);
+            if (changes != null)
+                applyChanges(changes, target);
+        }
+    }
 }